@@ -0,0 +1,55 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.chroma;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Serves the images of the {@link AssetCache}. The URL of an image changes with its content, so
+ * it is cached for a year, and revalidated with its hash as ETag.
+ */
+@RestController
+public class AssetController {
+
+  @Autowired
+  private AssetCache assets;
+
+  @RequestMapping(value = AssetCache.PATH + "/{version}/{name:.+}", method = RequestMethod.GET)
+  public ResponseEntity<byte[]> getAsset(@PathVariable String version, @PathVariable String name) {
+    AssetCache.Asset asset = assets.get(name);
+    if (asset == null || !asset.getVersion().equals(version)) {
+      return ResponseEntity.notFound().build();
+    }
+
+    return ResponseEntity.ok()
+        .cacheControl(CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic())
+        .eTag(asset.getVersion())
+        .contentType(MediaType.parseMediaType(asset.getContentType()))
+        .body(asset.getContent());
+  }
+
+}
@@ -18,6 +18,13 @@
 package org.kurento.tutorial.groupcall;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import javax.annotation.PreDestroy;
 
 import org.kurento.client.IceCandidate;
 import org.slf4j.Logger;
@@ -43,12 +50,27 @@ public class CallHandler extends TextWebSocketHandler {
 
   private static final Gson gson = new GsonBuilder().create();
 
+  // Runs the joins once their room is ready, instead of the media server client threads
+  private final ExecutorService joinExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "room-join-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
   @Autowired
   private RoomManager roomManager;
 
   @Autowired
   private UserRegistry registry;
 
+  @Autowired
+  private OutboundMessageSender messageSender;
+
   @Override
   public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
     final JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
@@ -74,13 +96,38 @@ public class CallHandler extends TextWebSocketHandler {
       case "leaveRoom":
         leaveRoom(user);
         break;
+      case "speaking":
+        if (user != null) {
+          final Room room = roomManager.getRoom(user.getRoomName());
+          if (room != null) {
+            room.speaking(user);
+          }
+        }
+        break;
+      case "getRoster":
+        if (user != null) {
+          final Room room = roomManager.getRoom(user.getRoomName());
+          if (room != null) {
+            room.sendParticipantNames(user);
+          }
+        }
+        break;
       case "onIceCandidate":
         JsonObject candidate = jsonMessage.get("candidate").getAsJsonObject();
+        final String candidateSenderName = jsonMessage.get("name").getAsString();
 
         if (user != null) {
+          // Candidates for someone that is not in the room would be buffered for nothing
+          final UserSession candidateSender = registry.getByName(candidateSenderName);
+          if (candidateSender == null
+              || !candidateSender.getRoomName().equals(user.getRoomName())) {
+            log.debug("PARTICIPANT {}: ignoring candidate for {}, not in room {}",
+                user.getName(), candidateSenderName, user.getRoomName());
+            break;
+          }
           IceCandidate cand = new IceCandidate(candidate.get("candidate").getAsString(),
               candidate.get("sdpMid").getAsString(), candidate.get("sdpMLineIndex").getAsInt());
-          user.addCandidate(cand, jsonMessage.get("name").getAsString());
+          user.addCandidate(cand, candidateSenderName);
         }
         break;
       default:
@@ -90,22 +137,78 @@ public class CallHandler extends TextWebSocketHandler {
 
   @Override
   public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
+    messageSender.remove(session);
     UserSession user = registry.removeBySession(session);
-    roomManager.getRoom(user.getRoomName()).leave(user);
+    if (user != null) {
+      final Room room = roomManager.getRoom(user.getRoomName());
+      if (room != null) {
+        room.leave(user);
+      } else {
+        user.close();
+      }
+    }
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    joinExecutor.shutdownNow();
   }
 
-  private void joinRoom(JsonObject params, WebSocketSession session) throws IOException {
+  private void joinRoom(JsonObject params, final WebSocketSession session) {
     final String roomName = params.get("room").getAsString();
     final String name = params.get("name").getAsString();
+    final int lastN = params.has("lastN") ? params.get("lastN").getAsInt() : GroupCallApp.LAST_N;
     log.info("PARTICIPANT {}: trying to join room {}", name, roomName);
+    joinRoom(roomName, name, lastN, session);
+  }
+
+  private void joinRoom(final String roomName, final String name, final int lastN,
+      final WebSocketSession session) {
+    roomManager.getRoomAsync(roomName).whenCompleteAsync(new BiConsumer<Room, Throwable>() {
+      @Override
+      public void accept(Room room, Throwable cause) {
+        if (cause != null) {
+          log.error("PARTICIPANT {}: could not join room {}", name, roomName, cause);
+          return;
+        }
 
-    Room room = roomManager.getRoom(roomName);
-    final UserSession user = room.join(name, session);
-    registry.register(user);
+        try {
+          final UserSession user = room.join(name, session, lastN);
+          if (user == null && room.isClosed()) {
+            // Emptied and closed meanwhile, the next lookup gets a new room
+            log.debug("PARTICIPANT {}: room {} was closed, trying again", name, roomName);
+            joinRoom(roomName, name, lastN, session);
+            return;
+          }
+          if (user == null || !registry.register(user)) {
+            if (user != null) {
+              leaveRoom(user);
+            }
+            final JsonObject response = new JsonObject();
+            response.addProperty("id", "joinRoomRejected");
+            response.addProperty("message", "User '" + name + "' is already registered");
+            messageSender.send(session, response.toString());
+            return;
+          }
+          if (!session.isOpen()) {
+            registry.removeBySession(session);
+            room.leave(user);
+            return;
+          }
+          room.sendParticipantNames(user);
+        } catch (IOException e) {
+          log.error("PARTICIPANT {}: could not join room {}", name, roomName, e);
+        }
+      }
+    }, joinExecutor);
   }
 
   private void leaveRoom(UserSession user) throws IOException {
     final Room room = roomManager.getRoom(user.getRoomName());
+    if (room == null) {
+      user.close();
+      return;
+    }
     room.leave(user);
     if (room.getParticipants().isEmpty()) {
       roomManager.removeRoom(room);
@@ -17,7 +17,6 @@
 
 package org.kurento.tutorial.groupcall;
 
-import org.kurento.client.KurentoClient;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
@@ -34,6 +33,35 @@ import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry
 @EnableWebSocket
 public class GroupCallApp implements WebSocketConfigurer {
 
+  protected static final int DEFAULT_MIXED_MODE_THRESHOLD = 12;
+
+  protected static final int MIXED_MODE_THRESHOLD = Integer.getInteger("room.mixedThreshold",
+      DEFAULT_MIXED_MODE_THRESHOLD);
+
+  protected static final int DEFAULT_LAST_N = 0;
+
+  protected static final int LAST_N = Integer.getInteger("room.lastN", DEFAULT_LAST_N);
+
+  protected static final long DEFAULT_ROSTER_BATCH_WINDOW = 100;
+
+  protected static final long ROSTER_BATCH_WINDOW = Long.getLong("roster.batchWindow",
+      DEFAULT_ROSTER_BATCH_WINDOW);
+
+  protected static final long DEFAULT_SPEAKER_DEBOUNCE = 300;
+
+  protected static final long SPEAKER_DEBOUNCE = Long.getLong("room.speakerDebounce",
+      DEFAULT_SPEAKER_DEBOUNCE);
+
+  protected static final int DEFAULT_ICE_BUFFER_SIZE = 64;
+
+  protected static final int ICE_BUFFER_SIZE = Integer.getInteger("ice.bufferSize",
+      DEFAULT_ICE_BUFFER_SIZE);
+
+  protected static final long DEFAULT_ICE_BUFFER_TTL = 30000;
+
+  protected static final long ICE_BUFFER_TTL = Long.getLong("ice.bufferTtl",
+      DEFAULT_ICE_BUFFER_TTL);
+
   @Bean
   public UserRegistry registry() {
     return new UserRegistry();
@@ -44,14 +72,34 @@ public class GroupCallApp implements WebSocketConfigurer {
     return new RoomManager();
   }
 
+  @Bean
+  public OutboundMessageSender outboundMessageSender() {
+    return new OutboundMessageSender(Integer.getInteger("outbound.queueCapacity", 256),
+        OutboundMessageSender.OverflowPolicy
+            .valueOf(System.getProperty("outbound.overflowPolicy", "DISCONNECT")),
+        Long.getLong("outbound.sendTimeout", 10000),
+        Integer.getInteger("outbound.writerThreads", Runtime.getRuntime().availableProcessors()));
+  }
+
   @Bean
   public CallHandler groupCallHandler() {
     return new CallHandler();
   }
 
   @Bean
-  public KurentoClient kurentoClient() {
-    return KurentoClient.create();
+  public KurentoClientPool kurentoClientPool() {
+    return new KurentoClientPool(KurentoClientPool.parseUris(System.getProperty("kms.urls")),
+        Double.parseDouble(System.getProperty("kms.cpuWeight", "1.0")),
+        Double.parseDouble(System.getProperty("kms.pipelineWeight", "0.05")),
+        Long.getLong("kms.loadRefreshInterval", 5000));
+  }
+
+  @Bean
+  public MediaPipelinePool pipelinePool() {
+    return new MediaPipelinePool(kurentoClientPool(), Integer.getInteger("pipelinePool.warmSize", 2),
+        Integer.getInteger("pipelinePool.maxSize", 8),
+        Long.getLong("pipelinePool.idleTimeout", 60000),
+        Long.getLong("pipelinePool.checkInterval", 30000));
   }
 
   public static void main(String[] args) throws Exception {
@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.IceCandidate;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the ICE candidates sent by a client before the endpoint they belong to is ready, so they
+ * are not lost. The buffer keeps at most {@code maxSize} candidates, discarding the oldest ones, and
+ * candidates older than {@code ttlMillis} are discarded too, as the client has given up on them.
+ */
+public class IceCandidateBuffer {
+
+  private static final Logger log = LoggerFactory.getLogger(IceCandidateBuffer.class);
+
+  private final int maxSize;
+  private final long ttlMillis;
+  private final Deque<BufferedCandidate> candidates = new ArrayDeque<>();
+  private long lastAddedAt = System.currentTimeMillis();
+
+  private static class BufferedCandidate {
+    private final IceCandidate candidate;
+    private final long receivedAt = System.currentTimeMillis();
+
+    private BufferedCandidate(IceCandidate candidate) {
+      this.candidate = candidate;
+    }
+  }
+
+  /**
+   * @param maxSize
+   *          maximum number of candidates kept
+   * @param ttlMillis
+   *          time after which a candidate is discarded
+   */
+  public IceCandidateBuffer(int maxSize, long ttlMillis) {
+    this.maxSize = maxSize;
+    this.ttlMillis = ttlMillis;
+  }
+
+  public synchronized void add(IceCandidate candidate) {
+    expire();
+    if (candidates.size() >= maxSize) {
+      candidates.pollFirst();
+      log.debug("ICE candidate buffer full, discarding the oldest candidate");
+    }
+    candidates.addLast(new BufferedCandidate(candidate));
+    lastAddedAt = System.currentTimeMillis();
+  }
+
+  /**
+   * Whether the buffer is of no use anymore: nothing has been added to it for {@code ttlMillis},
+   * so every candidate it held has expired.
+   *
+   * @return true if the buffer can be discarded
+   */
+  public synchronized boolean isExpired() {
+    expire();
+    return candidates.isEmpty() && System.currentTimeMillis() - lastAddedAt > ttlMillis;
+  }
+
+  /**
+   * Takes the candidates still alive out of the buffer.
+   *
+   * @return the candidates, in arrival order
+   */
+  public synchronized List<IceCandidate> drain() {
+    expire();
+    final List<IceCandidate> result = new ArrayList<>(candidates.size());
+    for (final BufferedCandidate buffered : candidates) {
+      result.add(buffered.candidate);
+    }
+    candidates.clear();
+    return result;
+  }
+
+  /**
+   * Adds all the buffered candidates to an endpoint, without waiting for the media server.
+   *
+   * @param endpoint
+   *          the endpoint the candidates belong to
+   */
+  public void flushTo(final WebRtcEndpoint endpoint) {
+    final List<IceCandidate> drained = drain();
+    if (drained.isEmpty()) {
+      return;
+    }
+
+    log.debug("Adding {} buffered ICE candidates to endpoint {}", drained.size(),
+        endpoint.getId());
+    for (final IceCandidate candidate : drained) {
+      endpoint.addIceCandidate(candidate, new Continuation<Void>() {
+        @Override
+        public void onSuccess(Void result) throws Exception {
+        }
+
+        @Override
+        public void onError(Throwable cause) throws Exception {
+          log.warn("Could not add buffered candidate to endpoint {}: {}", endpoint.getId(),
+              cause.getMessage());
+        }
+      });
+    }
+  }
+
+  private void expire() {
+    final long now = System.currentTimeMillis();
+    while (!candidates.isEmpty() && now - candidates.peekFirst().receivedAt > ttlMillis) {
+      candidates.pollFirst();
+      log.debug("Discarding expired ICE candidate");
+    }
+  }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.client.ServerManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Set of clients connected to several media servers, used to spread new pipelines among them.
+ * <p>
+ * The load of each server is read periodically from its {@link ServerManager}, as a weighted sum of
+ * its CPU usage and its number of pipelines. Each pipeline placed on a server since the last reading
+ * is added to its load, so a burst of new pipelines is not sent to the same server. Servers that
+ * cannot be queried are not selected while any other server is available.
+ * <p>
+ * The pool only chooses where a new pipeline is created: the pipeline, and every element created
+ * in it, stays in that server for its whole life.
+ */
+public class KurentoClientPool {
+
+  private static final Logger log = LoggerFactory.getLogger(KurentoClientPool.class);
+
+  private static final int CPU_SAMPLE_MILLIS = 500;
+
+  private final List<Server> servers = new ArrayList<>();
+  private final double cpuWeight;
+  private final double pipelineWeight;
+
+  private final ScheduledExecutorService monitor = Executors
+      .newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "kms-load-monitor");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private static class Server {
+    private final String uri;
+    private final KurentoClient client;
+    private double load;
+    private int placed;
+    private boolean available = true;
+
+    private Server(String uri, KurentoClient client) {
+      this.uri = uri;
+      this.client = client;
+    }
+
+    private double score(double pipelineWeight) {
+      return load + placed * pipelineWeight;
+    }
+  }
+
+  /**
+   * @param uris
+   *          WebSocket URIs of the media servers. If empty, a single client is created with the
+   *          default configuration of {@link KurentoClient#create()}
+   * @param cpuWeight
+   *          weight of the CPU usage of a server, from 0 to 1, in its load
+   * @param pipelineWeight
+   *          weight of each pipeline of a server in its load
+   * @param refreshIntervalMillis
+   *          period of the load readings
+   */
+  public KurentoClientPool(List<String> uris, double cpuWeight, double pipelineWeight,
+      long refreshIntervalMillis) {
+    this.cpuWeight = cpuWeight;
+    this.pipelineWeight = pipelineWeight;
+
+    if (uris.isEmpty()) {
+      servers.add(new Server("default", KurentoClient.create()));
+    } else {
+      for (String uri : uris) {
+        servers.add(new Server(uri, KurentoClient.create(uri)));
+      }
+    }
+
+    if (servers.size() > 1) {
+      monitor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          refresh();
+        }
+      }, 0, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Parses a comma separated list of media server URIs.
+   *
+   * @param uris
+   *          the list, can be null
+   * @return the URIs, empty if none was given
+   */
+  public static List<String> parseUris(String uris) {
+    if (uris == null || uris.trim().isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<String> result = new ArrayList<>();
+    for (String uri : uris.split(",")) {
+      if (!uri.trim().isEmpty()) {
+        result.add(uri.trim());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Chooses the least loaded media server for a new pipeline, and accounts the pipeline to it until
+   * the next load reading.
+   *
+   * @return the client of the chosen server
+   */
+  public synchronized KurentoClient select() {
+    Server best = null;
+    for (Server server : servers) {
+      if (best == null || (server.available && !best.available)
+          || (server.available == best.available
+              && server.score(pipelineWeight) < best.score(pipelineWeight))) {
+        best = server;
+      }
+    }
+    best.placed++;
+    log.trace("Placing pipeline on media server {} (load {})", best.uri,
+        best.score(pipelineWeight));
+    return best.client;
+  }
+
+  /**
+   * Clients of all the media servers of the pool, whatever their load.
+   *
+   * @return the clients
+   */
+  public List<KurentoClient> getClients() {
+    List<KurentoClient> result = new ArrayList<>();
+    for (Server server : servers) {
+      result.add(server.client);
+    }
+    return result;
+  }
+
+  @PreDestroy
+  public void close() {
+    monitor.shutdownNow();
+    for (Server server : servers) {
+      server.client.destroy();
+    }
+  }
+
+  private void refresh() {
+    for (Server server : servers) {
+      double load;
+      boolean available;
+      try {
+        ServerManager manager = server.client.getServerManager();
+        double cpu = manager.getUsedCpu(CPU_SAMPLE_MILLIS) / 100;
+        int pipelines = manager.getPipelines().size();
+        load = cpuWeight * cpu + pipelineWeight * pipelines;
+        available = true;
+        log.trace("Media server {}: {}% CPU, {} pipelines", server.uri, cpu * 100, pipelines);
+      } catch (Exception e) {
+        log.warn("Could not read the load of media server {}: {}", server.uri, e.getMessage());
+        load = Double.MAX_VALUE;
+        available = false;
+      }
+
+      synchronized (this) {
+        server.load = load;
+        server.placed = 0;
+        server.available = available;
+      }
+    }
+  }
+
+}
@@ -21,22 +21,23 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PreDestroy;
 
+import org.kurento.client.Composite;
 import org.kurento.client.Continuation;
 import org.kurento.client.MediaPipeline;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.WebSocketSession;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonPrimitive;
 
 /**
  * @author Ivan Gracia (izanmail@gmail.com)
@@ -47,15 +48,49 @@ public class Room implements Closeable {
 
   private final ConcurrentMap<String, UserSession> participants = new ConcurrentHashMap<>();
   private final MediaPipeline pipeline;
+  private final MediaPipelinePool pipelinePool;
   private final String name;
+  private final int mixedThreshold;
+  private final OutboundMessageSender messageSender;
+  private final RoomRoster roster;
+  private final ScheduledExecutorService scheduler;
+  private final LinkedList<String> speakers = new LinkedList<>();
+  private boolean videoSendersUpdateScheduled;
+  private boolean closed;
+  private volatile Composite composite;
+  private boolean switchingToMixed;
 
   public String getName() {
     return name;
   }
 
-  public Room(String roomName, MediaPipeline pipeline) {
+  /**
+   * @param roomName
+   *          the name of the room
+   * @param pipeline
+   *          the pipeline where all the media elements of the room will be created
+   * @param pipelinePool
+   *          the pool the pipeline was borrowed from, and is discarded through
+   * @param mixedThreshold
+   *          number of participants from which the room stops forwarding every stream to every
+   *          participant, and mixes all of them in a {@link Composite} instead
+   * @param messageSender
+   *          sender used to queue the messages to the participants
+   * @param scheduler
+   *          single threaded scheduler used to send the accumulated roster and video sender
+   *          updates
+   */
+  public Room(String roomName, MediaPipeline pipeline, MediaPipelinePool pipelinePool,
+      int mixedThreshold, OutboundMessageSender messageSender,
+      ScheduledExecutorService scheduler) {
     this.name = roomName;
     this.pipeline = pipeline;
+    this.pipelinePool = pipelinePool;
+    this.mixedThreshold = mixedThreshold;
+    this.messageSender = messageSender;
+    this.scheduler = scheduler;
+    this.roster = new RoomRoster(roomName, participants.values(), scheduler,
+        GroupCallApp.ROSTER_BATCH_WINDOW);
     log.info("ROOM {} has been created", roomName);
   }
 
@@ -64,83 +99,218 @@ public class Room implements Closeable {
     this.close();
   }
 
-  public UserSession join(String userName, WebSocketSession session) throws IOException {
-    log.info("ROOM {}: adding participant {}", userName, userName);
-    final UserSession participant = new UserSession(userName, this.name, session, this.pipeline);
-    joinRoom(participant);
-    participants.put(participant.getName(), participant);
-    sendParticipantNames(participant);
+  public UserSession join(String userName, WebSocketSession session, int lastN)
+      throws IOException {
+    if (isClosed()) {
+      log.info("ROOM {}: closed, {} cannot join", this.name, userName);
+      return null;
+    }
+    log.info("ROOM {}: adding participant {}", this.name, userName);
+    final UserSession participant = new UserSession(userName, this.name, session, this.pipeline,
+        messageSender, lastN);
+    final boolean switching;
+    final Composite hub;
+    synchronized (this) {
+      if (closed) {
+        log.info("ROOM {}: closed, {} cannot join", this.name, userName);
+        participant.close();
+        return null;
+      }
+      if (participants.containsKey(userName)) {
+        log.info("ROOM {}: name {} already taken", this.name, userName);
+        participant.close();
+        return null;
+      }
+      switching = !switchingToMixed && participants.size() + 1 >= mixedThreshold;
+      if (switching) {
+        switchingToMixed = true;
+      }
+      hub = composite;
+      participants.put(participant.getName(), participant);
+      roster.added(participant.getName());
+    }
+
+    // Media server requests are made out of the room lock, so the room is not held for them
+    if (hub != null) {
+      participant.connectToHub(hub);
+    }
+    if (switching) {
+      switchToMixed(participant);
+    }
+    synchronized (speakers) {
+      speakers.addLast(participant.getName());
+    }
+    updateVideoSenders();
     return participant;
   }
 
-  public void leave(UserSession user) throws IOException {
-    log.debug("PARTICIPANT {}: Leaving room {}", user.getName(), this.name);
-    this.removeParticipant(user.getName());
-    user.close();
+  /**
+   * Moves a participant to the head of the list of speakers, so participants receiving video only
+   * from the last N speakers start receiving it.
+   *
+   * @param user
+   *          the participant that is speaking
+   */
+  public void speaking(UserSession user) {
+    synchronized (speakers) {
+      if (user.getName().equals(speakers.peekFirst())) {
+        return;
+      }
+      speakers.remove(user.getName());
+      speakers.addFirst(user.getName());
+    }
+    log.trace("ROOM {}: {} is speaking", this.name, user.getName());
+    updateVideoSenders();
   }
 
-  private Collection<String> joinRoom(UserSession newParticipant) throws IOException {
-    final JsonObject newParticipantMsg = new JsonObject();
-    newParticipantMsg.addProperty("id", "newParticipantArrived");
-    newParticipantMsg.addProperty("name", newParticipant.getName());
+  /**
+   * Schedules the participants to re-point their video to the last speakers. Changes of speaker
+   * within {@link GroupCallApp#SPEAKER_DEBOUNCE} are applied together, with the order of speakers
+   * at that moment, so a lively conversation does not turn into a flood of reconnections.
+   */
+  private void updateVideoSenders() {
+    synchronized (speakers) {
+      if (videoSendersUpdateScheduled) {
+        return;
+      }
+      videoSendersUpdateScheduled = true;
+    }
+
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        applyVideoSenders();
+      }
+    }, GroupCallApp.SPEAKER_DEBOUNCE, TimeUnit.MILLISECONDS);
+  }
 
-    final List<String> participantsList = new ArrayList<>(participants.values().size());
-    log.debug("ROOM {}: notifying other participants of new participant {}", name,
-        newParticipant.getName());
+  private void applyVideoSenders() {
+    final List<UserSession> orderedSpeakers = new ArrayList<>();
+    synchronized (speakers) {
+      videoSendersUpdateScheduled = false;
+      for (final String speaker : speakers) {
+        final UserSession participant = participants.get(speaker);
+        if (participant != null) {
+          orderedSpeakers.add(participant);
+        }
+      }
+    }
 
+    // Out of the lock, so speakers are not held by the media server; the single scheduler thread
+    // keeps the updates in order
     for (final UserSession participant : participants.values()) {
+      participant.updateVideoSenders(orderedSpeakers);
+    }
+  }
+
+  /**
+   * Whether the media of this room is mixed in a {@link Composite}, so each participant only holds
+   * one send/receive endpoint, or forwarded from each sender to each receiver.
+   *
+   * @return true if the room is in mixed mode
+   */
+  public boolean isMixed() {
+    return composite != null;
+  }
+
+  /**
+   * Moves the room to mixed mode. The hub is built out of the room lock and published under it:
+   * participants that join afterwards connect to it themselves, and the ones already in the room
+   * are moved to it here, each one building its new endpoints out of the lock as well.
+   *
+   * @param joining
+   *          the participant whose join reached the threshold, which has not negotiated any
+   *          endpoint yet and is only connected to the hub
+   */
+  private void switchToMixed(UserSession joining) {
+    log.info("ROOM {}: reached {} participants, switching to mixed mode", this.name,
+        mixedThreshold);
+    final Composite hub = new Composite.Builder(pipeline).build();
+    final List<UserSession> forwarded;
+    synchronized (this) {
+      if (closed) {
+        hub.release();
+        return;
+      }
+      composite = hub;
+      roster.setMode("mixed");
+      forwarded = new ArrayList<>(participants.values());
+    }
+    forwarded.remove(joining);
+    joining.connectToHub(hub);
+
+    final JsonObject roomModeChangedMsg = new JsonObject();
+    roomModeChangedMsg.addProperty("id", "roomModeChanged");
+    roomModeChangedMsg.addProperty("mode", "mixed");
+
+    for (final UserSession participant : forwarded) {
+      if (participant.isClosed()) {
+        continue;
+      }
+      participant.switchToMixed(hub);
       try {
-        participant.sendMessage(newParticipantMsg);
+        participant.sendMessage(roomModeChangedMsg);
       } catch (final IOException e) {
         log.debug("ROOM {}: participant {} could not be notified", name, participant.getName(), e);
       }
-      participantsList.add(participant.getName());
     }
+  }
 
-    return participantsList;
+  public void leave(UserSession user) throws IOException {
+    log.debug("PARTICIPANT {}: Leaving room {}", user.getName(), this.name);
+    // Closed first, so endpoints for this user still being built are discarded
+    user.close();
+    this.removeParticipant(user.getName());
   }
 
-  private void removeParticipant(String name) throws IOException {
+  private void removeParticipant(String name) {
     participants.remove(name);
 
     log.debug("ROOM {}: notifying all users that {} is leaving the room", this.name, name);
-
-    final List<String> unnotifiedParticipants = new ArrayList<>();
-    final JsonObject participantLeftJson = new JsonObject();
-    participantLeftJson.addProperty("id", "participantLeft");
-    participantLeftJson.addProperty("name", name);
     for (final UserSession participant : participants.values()) {
-      try {
-        participant.cancelVideoFrom(name);
-        participant.sendMessage(participantLeftJson);
-      } catch (final IOException e) {
-        unnotifiedParticipants.add(participant.getName());
-      }
+      participant.cancelVideoFrom(name);
     }
+    roster.removed(name);
 
-    if (!unnotifiedParticipants.isEmpty()) {
-      log.debug("ROOM {}: The users {} could not be notified that {} left the room", this.name,
-          unnotifiedParticipants, name);
+    synchronized (speakers) {
+      speakers.remove(name);
     }
+    updateVideoSenders();
+  }
 
+  /**
+   * Sends the current list of participants to a user, either right after joining or when the user
+   * detects it missed a roster update.
+   *
+   * @param user
+   *          the destination user
+   */
+  public void sendParticipantNames(UserSession user) {
+    roster.sendSnapshot(user);
   }
 
-  public void sendParticipantNames(UserSession user) throws IOException {
+  /**
+   * Whether the room has been closed. A closed room is not joined anymore; users have to look for
+   * the room again, to get a new one.
+   *
+   * @return true if the room is closed
+   */
+  public synchronized boolean isClosed() {
+    return closed;
+  }
 
-    final JsonArray participantsArray = new JsonArray();
-    for (final UserSession participant : this.getParticipants()) {
-      if (!participant.equals(user)) {
-        final JsonElement participantName = new JsonPrimitive(participant.getName());
-        participantsArray.add(participantName);
-      }
+  /**
+   * Marks the room as closed if it has no participants. The check is done under the same lock as
+   * the joins, so no one can join a room that is about to be closed.
+   *
+   * @return true if the room was empty and is now closed to new participants
+   */
+  public synchronized boolean markClosedIfEmpty() {
+    if (closed || !participants.isEmpty()) {
+      return false;
     }
-
-    final JsonObject existingParticipantsMsg = new JsonObject();
-    existingParticipantsMsg.addProperty("id", "existingParticipants");
-    existingParticipantsMsg.add("data", participantsArray);
-    log.debug("PARTICIPANT {}: sending a list of {} participants", user.getName(),
-        participantsArray.size());
-    user.sendMessage(existingParticipantsMsg);
+    closed = true;
+    return true;
   }
 
   public Collection<UserSession> getParticipants() {
@@ -153,6 +323,9 @@ public class Room implements Closeable {
 
   @Override
   public void close() {
+    synchronized (this) {
+      closed = true;
+    }
     for (final UserSession user : participants.values()) {
       try {
         user.close();
@@ -164,7 +337,8 @@ public class Room implements Closeable {
 
     participants.clear();
 
-    pipeline.release(new Continuation<Void>() {
+    // Through the pool, so it stops tracking the pipeline as borrowed
+    pipelinePool.discard(pipeline, new Continuation<Void>() {
 
       @Override
       public void onSuccess(Void result) throws Exception {
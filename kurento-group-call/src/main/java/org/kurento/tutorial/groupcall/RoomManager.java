@@ -17,10 +17,16 @@
 
 package org.kurento.tutorial.groupcall;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
-import org.kurento.client.KurentoClient;
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaPipeline;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -34,41 +40,96 @@ public class RoomManager {
   private final Logger log = LoggerFactory.getLogger(RoomManager.class);
 
   @Autowired
-  private KurentoClient kurento;
+  private MediaPipelinePool pipelinePool;
+
+  @Autowired
+  private OutboundMessageSender messageSender;
 
-  private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, CompletableFuture<Room>> rooms = new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService roomScheduler = Executors
+      .newSingleThreadScheduledExecutor();
 
   /**
-   * Looks for a room in the active room list.
+   * Looks for a room in the active room list, without blocking the calling thread. Only the first
+   * caller for a given name creates the room; concurrent callers share the same future, so a single
+   * pipeline is ever created per room.
    *
    * @param roomName
    *          the name of the room
-   * @return the room if it was already created, or a new one if it is the first time this room is
-   *         accessed
+   * @return a future completed with the room if it was already created, or with a new one once its
+   *         pipeline is ready if it is the first time this room is accessed
    */
-  public Room getRoom(String roomName) {
+  public CompletableFuture<Room> getRoomAsync(final String roomName) {
     log.debug("Searching for room {}", roomName);
-    Room room = rooms.get(roomName);
+    CompletableFuture<Room> room = rooms.get(roomName);
+    if (room != null) {
+      log.debug("Room {} found!", roomName);
+      return room;
+    }
 
-    if (room == null) {
-      log.debug("Room {} not existent. Will create now!", roomName);
-      room = new Room(roomName, kurento.createMediaPipeline());
-      rooms.put(roomName, room);
+    final CompletableFuture<Room> newRoom = new CompletableFuture<>();
+    room = rooms.putIfAbsent(roomName, newRoom);
+    if (room != null) {
+      log.debug("Room {} found!", roomName);
+      return room;
     }
-    log.debug("Room {} found!", roomName);
-    return room;
+
+    log.debug("Room {} not existent. Will create now!", roomName);
+    pipelinePool.borrow(new Continuation<MediaPipeline>() {
+      @Override
+      public void onSuccess(MediaPipeline pipeline) throws Exception {
+        newRoom.complete(
+            new Room(roomName, pipeline, pipelinePool, GroupCallApp.MIXED_MODE_THRESHOLD,
+                messageSender, roomScheduler));
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("Could not create pipeline for room {}", roomName, cause);
+        rooms.remove(roomName, newRoom);
+        newRoom.completeExceptionally(cause);
+      }
+    });
+    return newRoom;
   }
 
   /**
-   * Removes a room from the list of available rooms.
+   * Looks for a room in the active room list, without waiting for it to be created.
+   *
+   * @param roomName
+   *          the name of the room
+   * @return the room, or null if it does not exist or its pipeline is still being created
+   */
+  public Room getRoom(String roomName) {
+    final CompletableFuture<Room> room = rooms.get(roomName);
+    return room != null ? room.getNow(null) : null;
+  }
+
+  /**
+   * Removes a room from the list of available rooms and closes it, if nobody is in it. Once closed
+   * the room rejects any join, so a user joining meanwhile has to look the room up again.
    *
    * @param room
    *          the room to be removed
    */
   public void removeRoom(Room room) {
-    this.rooms.remove(room.getName());
+    if (!room.markClosedIfEmpty()) {
+      log.debug("Room {} not removed, someone joined it", room.getName());
+      return;
+    }
+
+    final CompletableFuture<Room> entry = this.rooms.get(room.getName());
+    if (entry != null && entry.getNow(null) == room) {
+      this.rooms.remove(room.getName(), entry);
+    }
     room.close();
     log.info("Room {} removed and closed", room.getName());
   }
 
+  @PreDestroy
+  private void shutdown() {
+    roomScheduler.shutdownNow();
+  }
+
 }
@@ -0,0 +1,164 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Versioned list of the participants of a room.
+ * <p>
+ * Joins and leaves are not notified one by one: they are accumulated during a short window and then
+ * sent to every participant as a single {@code rosterUpdate} message, serialized once for all of
+ * them. Each update carries a sequence number, so clients can detect a missing update and ask for a
+ * full snapshot. The snapshot is also serialized once per version and cached.
+ */
+public class RoomRoster {
+
+  private static final Logger log = LoggerFactory.getLogger(RoomRoster.class);
+
+  private final String roomName;
+  private final Collection<UserSession> participants;
+  private final ScheduledExecutorService scheduler;
+  private final long batchWindowMillis;
+
+  private final Set<String> names = new LinkedHashSet<>();
+  private final Set<String> pendingJoined = new LinkedHashSet<>();
+  private final Set<String> pendingLeft = new LinkedHashSet<>();
+  private long sequence;
+  private String mode = "forward";
+  private String snapshot;
+  private boolean flushScheduled;
+
+  /**
+   * @param roomName
+   *          the name of the room, for logging
+   * @param participants
+   *          live view of the participants that receive the updates
+   * @param scheduler
+   *          scheduler used to send the accumulated updates
+   * @param batchWindowMillis
+   *          time during which joins and leaves are accumulated
+   */
+  public RoomRoster(String roomName, Collection<UserSession> participants,
+      ScheduledExecutorService scheduler, long batchWindowMillis) {
+    this.roomName = roomName;
+    this.participants = participants;
+    this.scheduler = scheduler;
+    this.batchWindowMillis = batchWindowMillis;
+  }
+
+  public synchronized void added(String name) {
+    pendingJoined.add(name);
+    scheduleFlush();
+  }
+
+  public synchronized void removed(String name) {
+    pendingJoined.remove(name);
+    if (names.contains(name)) {
+      pendingLeft.add(name);
+    }
+    scheduleFlush();
+  }
+
+  public synchronized void setMode(String mode) {
+    this.mode = mode;
+    this.snapshot = null;
+  }
+
+  /**
+   * Sends the participants of the last published version to a user. Updates published afterwards
+   * are always queued after the snapshot.
+   *
+   * @param user
+   *          the destination user
+   */
+  public synchronized void sendSnapshot(UserSession user) {
+    if (snapshot == null) {
+      final JsonObject existingParticipantsMsg = new JsonObject();
+      existingParticipantsMsg.addProperty("id", "existingParticipants");
+      existingParticipantsMsg.addProperty("seq", sequence);
+      existingParticipantsMsg.addProperty("mode", mode);
+      existingParticipantsMsg.add("data", toJsonArray(names));
+      snapshot = existingParticipantsMsg.toString();
+    }
+
+    log.debug("PARTICIPANT {}: sending a list of {} participants", user.getName(), names.size());
+    user.sendMessage(snapshot);
+  }
+
+  private void scheduleFlush() {
+    if (flushScheduled) {
+      return;
+    }
+    flushScheduled = true;
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    }, batchWindowMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void flush() {
+    flushScheduled = false;
+    if (pendingJoined.isEmpty() && pendingLeft.isEmpty()) {
+      return;
+    }
+
+    sequence++;
+    names.removeAll(pendingLeft);
+    names.addAll(pendingJoined);
+    snapshot = null;
+
+    final JsonObject rosterUpdateMsg = new JsonObject();
+    rosterUpdateMsg.addProperty("id", "rosterUpdate");
+    rosterUpdateMsg.addProperty("seq", sequence);
+    rosterUpdateMsg.add("left", toJsonArray(pendingLeft));
+    rosterUpdateMsg.add("joined", toJsonArray(pendingJoined));
+    final String update = rosterUpdateMsg.toString();
+
+    log.debug("ROOM {}: roster version {}, {} joined, {} left", roomName, sequence,
+        pendingJoined.size(), pendingLeft.size());
+    pendingJoined.clear();
+    pendingLeft.clear();
+
+    for (final UserSession participant : participants) {
+      participant.sendMessage(update);
+    }
+  }
+
+  private static JsonArray toJsonArray(Set<String> names) {
+    final JsonArray array = new JsonArray();
+    for (final String name : names) {
+      array.add(new JsonPrimitive(name));
+    }
+    return array;
+  }
+
+}
@@ -19,22 +19,34 @@ package org.kurento.tutorial.groupcall;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+import org.kurento.client.Composite;
 import org.kurento.client.Continuation;
 import org.kurento.client.EventListener;
+import org.kurento.client.HubPort;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.IceCandidateFoundEvent;
+import org.kurento.client.ListenerSubscription;
+import org.kurento.client.MediaElement;
 import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaType;
 import org.kurento.client.WebRtcEndpoint;
 import org.kurento.jsonrpc.JsonUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
 /**
  *
@@ -47,23 +59,55 @@ public class UserSession implements Closeable {
 
   private final String name;
   private final WebSocketSession session;
+  private final OutboundMessageSender messageSender;
 
   private final MediaPipeline pipeline;
 
   private final String roomName;
-  private final WebRtcEndpoint outgoingMedia;
+  private volatile WebRtcEndpoint outgoingMedia;
+  private volatile HubPort hubPort;
+  // Set as soon as the switch to the hub starts, so endpoints still being built are discarded
+  private volatile boolean mixed;
   private final ConcurrentMap<String, WebRtcEndpoint> incomingMedia = new ConcurrentHashMap<>();
+  private volatile boolean closed;
+  // Candidates received from the client before their endpoint has answered its offer
+  private final ConcurrentMap<String, IceCandidateBuffer> pendingCandidates =
+      new ConcurrentHashMap<>();
 
+  private final int lastN;
+  private final Set<String> videoSenders = new HashSet<>();
+
+  /**
+   * @param name
+   *          the name of the user
+   * @param roomName
+   *          the room the user is joining
+   * @param session
+   *          the WebSocket session of the user
+   * @param pipeline
+   *          the pipeline of the room
+   * @param messageSender
+   *          sender used to queue the messages to the user
+   * @param lastN
+   *          if greater than zero, video is only received from this number of participants, the
+   *          ones that have spoken most recently. Audio is always received from everyone
+   */
   public UserSession(final String name, String roomName, final WebSocketSession session,
-      MediaPipeline pipeline) {
+      MediaPipeline pipeline, OutboundMessageSender messageSender, int lastN) {
 
     this.pipeline = pipeline;
     this.name = name;
     this.session = session;
+    this.messageSender = messageSender;
+    this.lastN = lastN;
     this.roomName = roomName;
-    this.outgoingMedia = new WebRtcEndpoint.Builder(pipeline).build();
+    this.outgoingMedia = createOutgoingEndpoint();
+  }
+
+  private WebRtcEndpoint createOutgoingEndpoint() {
+    final WebRtcEndpoint endpoint = new WebRtcEndpoint.Builder(pipeline).build();
 
-    this.outgoingMedia.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
+    endpoint.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
 
       @Override
       public void onEvent(IceCandidateFoundEvent event) {
@@ -71,15 +115,10 @@ public class UserSession implements Closeable {
         response.addProperty("id", "iceCandidate");
         response.addProperty("name", name);
         response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-        try {
-          synchronized (session) {
-            session.sendMessage(new TextMessage(response.toString()));
-          }
-        } catch (IOException e) {
-          log.debug(e.getMessage());
-        }
+        messageSender.send(session, response.toString());
       }
     });
+    return endpoint;
   }
 
   public WebRtcEndpoint getOutgoingWebRtcPeer() {
@@ -103,61 +142,332 @@ public class UserSession implements Closeable {
     return this.roomName;
   }
 
-  public void receiveVideoFrom(UserSession sender, String sdpOffer) throws IOException {
-    log.info("USER {}: connecting with {} in room {}", this.name, sender.getName(), this.roomName);
+  /**
+   * Connects the outgoing endpoint of this user to a port of the room's {@link Composite}, in both
+   * directions, so the same endpoint sends the user's media and receives the mix.
+   *
+   * @param composite
+   *          the hub mixing the media of the room
+   */
+  public void connectToHub(Composite composite) {
+    log.debug("PARTICIPANT {}: connecting to the room hub", this.name);
+    mixed = true;
+    final HubPort port = new HubPort.Builder(composite).build();
+    final WebRtcEndpoint endpoint = outgoingMedia;
+    endpoint.connect(port);
+    port.connect(endpoint);
+    synchronized (this) {
+      if (!closed) {
+        hubPort = port;
+        return;
+      }
+    }
+    release(port, "hub port of a closed session");
+  }
 
-    log.trace("USER {}: SdpOffer for {} is {}", this.name, sender.getName(), sdpOffer);
+  /**
+   * Moves an already negotiated user to mixed mode. The endpoints receiving media from other
+   * participants are released, and the outgoing endpoint is replaced by a new one connected to the
+   * hub, as it has to be negotiated again as send/receive by the client.
+   *
+   * @param composite
+   *          the hub mixing the media of the room
+   */
+  public void switchToMixed(Composite composite) {
+    log.debug("PARTICIPANT {}: switching to mixed mode", this.name);
+    mixed = true;
+    for (final String remoteParticipantName : incomingMedia.keySet()) {
+      this.cancelVideoFrom(remoteParticipantName);
+    }
 
-    final String ipSdpAnswer = this.getEndpointForUser(sender).processOffer(sdpOffer);
-    final JsonObject scParams = new JsonObject();
-    scParams.addProperty("id", "receiveVideoAnswer");
-    scParams.addProperty("name", sender.getName());
-    scParams.addProperty("sdpAnswer", ipSdpAnswer);
+    // Built before the swap, so the session keeps a working endpoint until the new one is ready
+    final WebRtcEndpoint endpoint = createOutgoingEndpoint();
+    final HubPort port = new HubPort.Builder(composite).build();
+    endpoint.connect(port);
+    port.connect(endpoint);
+
+    final WebRtcEndpoint previousOutgoingMedia;
+    synchronized (this) {
+      if (closed) {
+        previousOutgoingMedia = null;
+      } else {
+        previousOutgoingMedia = outgoingMedia;
+        outgoingMedia = endpoint;
+        hubPort = port;
+      }
+    }
 
-    log.trace("USER {}: SdpAnswer for {} is {}", this.name, sender.getName(), ipSdpAnswer);
-    this.sendMessage(scParams);
-    log.debug("gather candidates");
-    this.getEndpointForUser(sender).gatherCandidates();
+    if (previousOutgoingMedia == null) {
+      release(port, "hub port of a closed session");
+      release(endpoint, "outgoing EP of a closed session");
+      return;
+    }
+    release(previousOutgoingMedia, "previous outgoing EP");
   }
 
-  private WebRtcEndpoint getEndpointForUser(final UserSession sender) {
+  /**
+   * Negotiates the endpoint receiving the media of a participant. Every step (building the
+   * endpoint, connecting it, processing the offer and gathering candidates) is requested to the
+   * media server asynchronously, so the calling thread is not held for any round trip, and the
+   * negotiations with all the participants of the room overlap.
+   *
+   * @param sender
+   *          the participant whose media is received, or this user for the loopback
+   * @param sdpOffer
+   *          the offer of the client
+   */
+  public void receiveVideoFrom(final UserSession sender, final String sdpOffer) {
+    log.info("USER {}: connecting with {} in room {}", this.name, sender.getName(), this.roomName);
+
+    if (mixed && !sender.getName().equals(name)) {
+      log.debug("USER {}: ignoring offer for {}, the room is in mixed mode", this.name,
+          sender.getName());
+      return;
+    }
+
+    log.trace("USER {}: SdpOffer for {} is {}", this.name, sender.getName(), sdpOffer);
+    final long start = System.currentTimeMillis();
+    synchronized (pendingCandidates) {
+      if (!pendingCandidates.containsKey(sender.getName())) {
+        pendingCandidates.put(sender.getName(), newCandidateBuffer());
+      }
+    }
+
     if (sender.getName().equals(name)) {
       log.debug("PARTICIPANT {}: configuring loopback", this.name);
-      return outgoingMedia;
+      negotiate(outgoingMedia, sender.getName(), sdpOffer, start);
+      return;
     }
 
     log.debug("PARTICIPANT {}: receiving video from {}", this.name, sender.getName());
+    final WebRtcEndpoint existing = incomingMedia.get(sender.getName());
+    if (existing != null) {
+      negotiate(existing, sender.getName(), sdpOffer, start);
+      return;
+    }
 
-    WebRtcEndpoint incoming = incomingMedia.get(sender.getName());
-    if (incoming == null) {
-      log.debug("PARTICIPANT {}: creating new endpoint for {}", this.name, sender.getName());
-      incoming = new WebRtcEndpoint.Builder(pipeline).build();
+    log.debug("PARTICIPANT {}: creating new endpoint for {}", this.name, sender.getName());
+    new WebRtcEndpoint.Builder(pipeline).buildAsync(new Continuation<WebRtcEndpoint>() {
+
+      @Override
+      public void onSuccess(WebRtcEndpoint incoming) throws Exception {
+        final WebRtcEndpoint previous = incomingMedia.putIfAbsent(sender.getName(), incoming);
+        if (previous != null) {
+          log.debug("PARTICIPANT {}: endpoint for {} created concurrently", UserSession.this.name,
+              sender.getName());
+          release(incoming, "duplicated incoming EP for " + sender.getName());
+          negotiate(previous, sender.getName(), sdpOffer, start);
+          return;
+        }
+        if (closed || sender.isClosed()) {
+          // Left while the endpoint was being built, after their endpoints were released
+          log.debug("PARTICIPANT {}: discarding endpoint for {}, one of them has left",
+              UserSession.this.name, sender.getName());
+          incomingMedia.remove(sender.getName(), incoming);
+          release(incoming, "incoming EP for departed " + sender.getName());
+          return;
+        }
+        if (mixed) {
+          // The room switched to the hub while the endpoint was being built
+          log.debug("PARTICIPANT {}: discarding endpoint for {}, the room is in mixed mode",
+              UserSession.this.name, sender.getName());
+          incomingMedia.remove(sender.getName(), incoming);
+          release(incoming, "incoming EP for " + sender.getName() + " in mixed mode");
+          return;
+        }
 
-      incoming.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
+        incoming.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
 
-        @Override
-        public void onEvent(IceCandidateFoundEvent event) {
-          JsonObject response = new JsonObject();
-          response.addProperty("id", "iceCandidate");
-          response.addProperty("name", sender.getName());
-          response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-          try {
-            synchronized (session) {
-              session.sendMessage(new TextMessage(response.toString()));
-            }
-          } catch (IOException e) {
-            log.debug(e.getMessage());
+          @Override
+          public void onEvent(IceCandidateFoundEvent event) {
+            JsonObject response = new JsonObject();
+            response.addProperty("id", "iceCandidate");
+            response.addProperty("name", sender.getName());
+            response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
+            messageSender.send(session, response.toString());
+          }
+        }, new Continuation<ListenerSubscription>() {
+
+          @Override
+          public void onSuccess(ListenerSubscription result) throws Exception {
+            log.trace("PARTICIPANT {}: listening to candidates of {}", UserSession.this.name,
+                sender.getName());
+          }
+
+          @Override
+          public void onError(Throwable cause) throws Exception {
+            log.warn("PARTICIPANT {}: could not listen to candidates of {}",
+                UserSession.this.name, sender.getName());
+          }
+        });
+
+        log.debug("PARTICIPANT {}: obtained endpoint for {}", UserSession.this.name,
+            sender.getName());
+        connectFrom(sender, incoming);
+        negotiate(incoming, sender.getName(), sdpOffer, start);
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("PARTICIPANT {}: could not create endpoint for {}", UserSession.this.name,
+            sender.getName(), cause);
+      }
+    });
+  }
+
+  private void negotiate(final WebRtcEndpoint endpoint, final String senderName,
+      String sdpOffer, final long start) {
+    endpoint.processOffer(sdpOffer, new Continuation<String>() {
+
+      @Override
+      public void onSuccess(String ipSdpAnswer) throws Exception {
+        final JsonObject scParams = new JsonObject();
+        scParams.addProperty("id", "receiveVideoAnswer");
+        scParams.addProperty("name", senderName);
+        scParams.addProperty("sdpAnswer", ipSdpAnswer);
+
+        log.trace("USER {}: SdpAnswer for {} is {}", UserSession.this.name, senderName,
+            ipSdpAnswer);
+        log.debug("USER {}: answered offer for {} in {} ms", UserSession.this.name, senderName,
+            System.currentTimeMillis() - start);
+        sendMessage(scParams);
+
+        final IceCandidateBuffer candidates;
+        synchronized (pendingCandidates) {
+          candidates = pendingCandidates.remove(senderName);
+          if (candidates != null) {
+            candidates.flushTo(endpoint);
           }
         }
-      });
 
-      incomingMedia.put(sender.getName(), incoming);
+        log.debug("gather candidates");
+        endpoint.gatherCandidates(new Continuation<Void>() {
+          @Override
+          public void onSuccess(Void result) throws Exception {
+          }
+
+          @Override
+          public void onError(Throwable cause) throws Exception {
+            log.warn("USER {}: could not gather candidates for {}", UserSession.this.name,
+                senderName);
+          }
+        });
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("USER {}: could not process offer for {}", UserSession.this.name, senderName,
+            cause);
+      }
+    });
+  }
+
+  private void connectFrom(final UserSession sender, WebRtcEndpoint incoming) {
+    final Continuation<Void> cont = new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.trace("PARTICIPANT {}: connected to {}", UserSession.this.name, sender.getName());
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("PARTICIPANT {}: could not connect to {}", UserSession.this.name,
+            sender.getName());
+      }
+    };
+
+    if (lastN <= 0) {
+      sender.getOutgoingWebRtcPeer().connect(incoming, cont);
+      return;
     }
 
-    log.debug("PARTICIPANT {}: obtained endpoint for {}", this.name, sender.getName());
-    sender.getOutgoingWebRtcPeer().connect(incoming);
+    sender.getOutgoingWebRtcPeer().connect(incoming, MediaType.AUDIO, cont);
+    synchronized (videoSenders) {
+      if (videoSenders.contains(sender.getName())) {
+        sender.getOutgoingWebRtcPeer().connect(incoming, MediaType.VIDEO, cont);
+      }
+    }
+  }
+
+  /**
+   * Re-points the video of the incoming endpoints to the participants that have spoken most
+   * recently, when this user only wants video from the last N speakers. Audio connections are not
+   * modified.
+   *
+   * @param speakers
+   *          the participants of the room, the most recent speaker first
+   */
+  public void updateVideoSenders(List<UserSession> speakers) {
+    if (lastN <= 0 || mixed) {
+      return;
+    }
+
+    final Set<String> selected = new HashSet<>();
+    for (final UserSession speaker : speakers) {
+      if (selected.size() >= lastN) {
+        break;
+      }
+      if (!speaker.getName().equals(name)) {
+        selected.add(speaker.getName());
+      }
+    }
+
+    final List<UserSession> changed = new ArrayList<>();
+    synchronized (videoSenders) {
+      if (selected.equals(videoSenders)) {
+        return;
+      }
+
+      for (final UserSession speaker : speakers) {
+        if (selected.contains(speaker.getName()) != videoSenders.contains(speaker.getName())) {
+          changed.add(speaker);
+        }
+      }
+
+      videoSenders.clear();
+      videoSenders.addAll(selected);
+    }
+
+    for (final UserSession speaker : changed) {
+      repointVideoFrom(speaker, selected.contains(speaker.getName()));
+    }
+
+    final JsonArray videoSendersArray = new JsonArray();
+    for (final String videoSender : selected) {
+      videoSendersArray.add(new JsonPrimitive(videoSender));
+    }
+    final JsonObject videoSendersMsg = new JsonObject();
+    videoSendersMsg.addProperty("id", "videoSenders");
+    videoSendersMsg.add("data", videoSendersArray);
+    sendMessage(videoSendersMsg.toString());
+  }
+
+  private void repointVideoFrom(UserSession speaker, final boolean visible) {
+    final String speakerName = speaker.getName();
+    final WebRtcEndpoint incoming = incomingMedia.get(speakerName);
+    if (incoming == null) {
+      return;
+    }
 
-    return incoming;
+    final WebRtcEndpoint outgoing = speaker.getOutgoingWebRtcPeer();
+    final Continuation<Void> cont = new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.trace("PARTICIPANT {}: video from {} {}", UserSession.this.name, speakerName,
+            visible ? "connected" : "disconnected");
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("PARTICIPANT {}: could not re-point video from {}", UserSession.this.name,
+            speakerName);
+      }
+    };
+    if (visible) {
+      outgoing.connect(incoming, MediaType.VIDEO, cont);
+    } else {
+      outgoing.disconnect(incoming, MediaType.VIDEO, cont);
+    }
   }
 
   public void cancelVideoFrom(final UserSession sender) {
@@ -166,7 +476,11 @@ public class UserSession implements Closeable {
 
   public void cancelVideoFrom(final String senderName) {
     log.debug("PARTICIPANT {}: canceling video reception from {}", this.name, senderName);
+    pendingCandidates.remove(senderName);
     final WebRtcEndpoint incoming = incomingMedia.remove(senderName);
+    if (incoming == null) {
+      return;
+    }
 
     log.debug("PARTICIPANT {}: removing endpoint for {}", this.name, senderName);
     incoming.release(new Continuation<Void>() {
@@ -184,8 +498,33 @@ public class UserSession implements Closeable {
     });
   }
 
+  private void release(MediaElement element, final String description) {
+    element.release(new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.trace("PARTICIPANT {}: Released {}", UserSession.this.name, description);
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("PARTICIPANT {}: Could not release {}", UserSession.this.name, description);
+      }
+    });
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
   @Override
   public void close() throws IOException {
+    final HubPort hubPort;
+    final WebRtcEndpoint outgoingMedia;
+    synchronized (this) {
+      closed = true;
+      hubPort = this.hubPort;
+      outgoingMedia = this.outgoingMedia;
+    }
     log.debug("PARTICIPANT {}: Releasing resources", this.name);
     for (final String remoteParticipantName : incomingMedia.keySet()) {
 
@@ -209,6 +548,21 @@ public class UserSession implements Closeable {
       });
     }
 
+    if (hubPort != null) {
+      hubPort.release(new Continuation<Void>() {
+
+        @Override
+        public void onSuccess(Void result) throws Exception {
+          log.trace("PARTICIPANT {}: Released hub port", UserSession.this.name);
+        }
+
+        @Override
+        public void onError(Throwable cause) throws Exception {
+          log.warn("USER {}: Could not release hub port", UserSession.this.name);
+        }
+      });
+    }
+
     outgoingMedia.release(new Continuation<Void>() {
 
       @Override
@@ -225,20 +579,65 @@ public class UserSession implements Closeable {
 
   public void sendMessage(JsonObject message) throws IOException {
     log.debug("USER {}: Sending message {}", name, message);
-    synchronized (session) {
-      session.sendMessage(new TextMessage(message.toString()));
-    }
+    messageSender.send(session, message.toString());
+  }
+
+  /**
+   * Sends an already serialized message, so the same payload can be shared by many users.
+   *
+   * @param message
+   *          the serialized message
+   */
+  public void sendMessage(String message) {
+    log.debug("USER {}: Sending message {}", name, message);
+    messageSender.send(session, message);
   }
 
+  /**
+   * Adds a candidate of the client to the endpoint it belongs to. If the endpoint does not exist
+   * yet, or has not answered the offer of the client, the candidate is buffered until it does.
+   *
+   * @param candidate
+   *          the candidate
+   * @param name
+   *          the participant whose endpoint the candidate belongs to
+   */
   public void addCandidate(IceCandidate candidate, String name) {
-    if (this.name.compareTo(name) == 0) {
-      outgoingMedia.addIceCandidate(candidate);
-    } else {
-      WebRtcEndpoint webRtc = incomingMedia.get(name);
-      if (webRtc != null) {
-        webRtc.addIceCandidate(candidate);
+    if (closed) {
+      return;
+    }
+    final WebRtcEndpoint webRtc;
+    synchronized (pendingCandidates) {
+      webRtc = this.name.equals(name) ? outgoingMedia : incomingMedia.get(name);
+      IceCandidateBuffer candidates = pendingCandidates.get(name);
+      if (candidates == null && webRtc == null) {
+        discardExpiredCandidates();
+        candidates = newCandidateBuffer();
+        pendingCandidates.put(name, candidates);
+      }
+      if (candidates != null) {
+        candidates.add(candidate);
+        return;
       }
     }
+    webRtc.addIceCandidate(candidate);
+  }
+
+  // Buffers of senders that never got an endpoint, e.g. because they left, are dropped once stale
+  private void discardExpiredCandidates() {
+    final Iterator<Map.Entry<String, IceCandidateBuffer>> it =
+        pendingCandidates.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<String, IceCandidateBuffer> entry = it.next();
+      if (entry.getValue().isExpired()) {
+        log.debug("PARTICIPANT {}: discarding stale candidates for {}", this.name, entry.getKey());
+        it.remove();
+      }
+    }
+  }
+
+  private IceCandidateBuffer newCandidateBuffer() {
+    return new IceCandidateBuffer(GroupCallApp.ICE_BUFFER_SIZE, GroupCallApp.ICE_BUFFER_TTL);
   }
 
   /*
@@ -18,6 +18,15 @@
 var ws = new WebSocket('wss://' + location.host + '/groupcall');
 var participants = {};
 var name;
+var mixed = false;
+var rosterSeq = 0;
+var resyncing = false;
+var videoSenders = null;
+var speakingDetector;
+
+const SPEAKING_LEVEL = 0.05;
+const SPEAKING_CHECK_INTERVAL = 100;
+const SPEAKING_REPORT_INTERVAL = 1000;
 
 window.onbeforeunload = function() {
 	ws.close();
@@ -31,11 +40,17 @@ ws.onmessage = function(message) {
 	case 'existingParticipants':
 		onExistingParticipants(parsedMessage);
 		break;
-	case 'newParticipantArrived':
-		onNewParticipant(parsedMessage);
+	case 'rosterUpdate':
+		onRosterUpdate(parsedMessage);
+		break;
+	case 'roomModeChanged':
+		onRoomModeChanged(parsedMessage);
 		break;
-	case 'participantLeft':
-		onParticipantLeft(parsedMessage);
+	case 'joinRoomRejected':
+		onJoinRoomRejected(parsedMessage);
+		break;
+	case 'videoSenders':
+		onVideoSenders(parsedMessage);
 		break;
 	case 'receiveVideoAnswer':
 		receiveVideoResponse(parsedMessage);
@@ -66,13 +81,144 @@ function register() {
 		name : name,
 		room : room,
 	}
+	var lastN = document.getElementById('lastN').value;
+	if (lastN !== '') {
+		message.lastN = parseInt(lastN, 10);
+	}
 	sendMessage(message);
 }
 
+function onJoinRoomRejected(msg) {
+	console.warn('Could not join room: ' + msg.message);
+	alert(msg.message);
+	document.getElementById('join').style.display = 'block';
+	document.getElementById('room').style.display = 'none';
+}
+
 function onNewParticipant(request) {
+	if (mixed) {
+		return;
+	}
 	receiveVideo(request.name);
 }
 
+function onVideoSenders(msg) {
+	videoSenders = {};
+	msg.data.forEach(function(sender) {
+		videoSenders[sender] = true;
+	});
+	for ( var key in participants) {
+		if (key !== name) {
+			participants[key].setVideoActive(!!videoSenders[key]);
+		}
+	}
+}
+
+function startSpeakingDetector(stream) {
+	stopSpeakingDetector();
+	var AudioContext = window.AudioContext || window.webkitAudioContext;
+	if (!AudioContext || !stream || stream.getAudioTracks().length === 0) {
+		return;
+	}
+
+	var context = new AudioContext();
+	var analyser = context.createAnalyser();
+	analyser.fftSize = 512;
+	context.createMediaStreamSource(stream).connect(analyser);
+	var samples = new Uint8Array(analyser.fftSize);
+	var lastReport = 0;
+
+	var interval = setInterval(function() {
+		analyser.getByteTimeDomainData(samples);
+		var sum = 0;
+		for (var i = 0; i < samples.length; i++) {
+			var value = (samples[i] - 128) / 128;
+			sum += value * value;
+		}
+		var now = Date.now();
+		if (Math.sqrt(sum / samples.length) > SPEAKING_LEVEL
+				&& now - lastReport > SPEAKING_REPORT_INTERVAL) {
+			lastReport = now;
+			sendMessage({
+				id : 'speaking'
+			});
+		}
+	}, SPEAKING_CHECK_INTERVAL);
+
+	speakingDetector = {
+		stop : function() {
+			clearInterval(interval);
+			context.close();
+		}
+	};
+}
+
+function stopSpeakingDetector() {
+	if (speakingDetector) {
+		speakingDetector.stop();
+		speakingDetector = null;
+	}
+}
+
+function onRosterUpdate(msg) {
+	if (resyncing || msg.seq <= rosterSeq) {
+		return;
+	}
+	if (msg.seq !== rosterSeq + 1) {
+		console.warn('Missed roster updates ' + (rosterSeq + 1) + ' to ' + (msg.seq - 1) + ', resyncing');
+		resyncing = true;
+		sendMessage({
+			id : 'getRoster'
+		});
+		return;
+	}
+
+	rosterSeq = msg.seq;
+	msg.left.forEach(function(sender) {
+		onParticipantLeft({ name : sender });
+	});
+	msg.joined.forEach(function(sender) {
+		if (sender !== name) {
+			onNewParticipant({ name : sender });
+		}
+	});
+}
+
+function onRosterSnapshot(msg) {
+	rosterSeq = msg.seq;
+	resyncing = false;
+	if (mixed) {
+		return;
+	}
+
+	var present = {};
+	msg.data.forEach(function(sender) {
+		present[sender] = true;
+		if (sender !== name && !participants[sender]) {
+			receiveVideo(sender);
+		}
+	});
+	for ( var key in participants) {
+		if (key !== name && !present[key]) {
+			onParticipantLeft({ name : key });
+		}
+	}
+}
+
+function onRoomModeChanged(msg) {
+	console.log('Room switched to ' + msg.mode + ' mode');
+	stopSpeakingDetector();
+	videoSenders = null;
+	for ( var key in participants) {
+		participants[key].dispose();
+	}
+	participants = {};
+	onExistingParticipants({
+		data : [],
+		mode : msg.mode
+	});
+}
+
 function receiveVideoResponse(result) {
 	participants[result.name].rtcPeer.processAnswer (result.sdpAnswer, function (error) {
 		if (error) return console.error (error);
@@ -91,6 +237,9 @@ function callResponse(message) {
 }
 
 function onExistingParticipants(msg) {
+	if (participants[name]) {
+		return onRosterSnapshot(msg);
+	}
 	var constraints = {
 		audio : true,
 		video : {
@@ -102,30 +251,48 @@ function onExistingParticipants(msg) {
 		}
 	};
 	console.log(name + " registered in room " + room);
+	mixed = (msg.mode === 'mixed');
+	if (msg.seq !== undefined) {
+		rosterSeq = msg.seq;
+	}
 	var participant = new Participant(name);
 	participants[name] = participant;
 	var video = participant.getVideoElement();
 
 	var options = {
-	      localVideo: video,
 	      mediaConstraints: constraints,
 	      onicecandidate: participant.onIceCandidate.bind(participant)
 	    }
-	participant.rtcPeer = new kurentoUtils.WebRtcPeer.WebRtcPeerSendonly(options,
-		function (error) {
+	var onPeerCreated = function (error) {
 		  if(error) {
 			  return console.error(error);
 		  }
 		  this.generateOffer (participant.offerToReceiveVideo.bind(participant));
-	});
+		  if (!mixed) {
+			  startSpeakingDetector(this.getLocalStream());
+		  }
+	};
 
-	msg.data.forEach(receiveVideo);
+	if (mixed) {
+		// The same endpoint sends our media and receives the mix of the whole room
+		options.remoteVideo = video;
+		participant.rtcPeer = new kurentoUtils.WebRtcPeer.WebRtcPeerSendrecv(options, onPeerCreated);
+	} else {
+		options.localVideo = video;
+		participant.rtcPeer = new kurentoUtils.WebRtcPeer.WebRtcPeerSendonly(options, onPeerCreated);
+		msg.data.forEach(function(sender) {
+			if (sender !== name) {
+				receiveVideo(sender);
+			}
+		});
+	}
 }
 
 function leaveRoom() {
 	sendMessage({
 		id : 'leaveRoom'
 	});
+	stopSpeakingDetector();
 
 	for ( var key in participants) {
 		participants[key].dispose();
@@ -154,11 +321,17 @@ function receiveVideo(sender) {
 			  }
 			  this.generateOffer (participant.offerToReceiveVideo.bind(participant));
 	});;
+	if (videoSenders) {
+		participant.setVideoActive(!!videoSenders[sender]);
+	}
 }
 
 function onParticipantLeft(request) {
 	console.log('Participant ' + request.name + ' left');
 	var participant = participants[request.name];
+	if (!participant) {
+		return;
+	}
 	participant.dispose();
 	delete participants[request.name];
 }
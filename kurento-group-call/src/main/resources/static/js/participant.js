@@ -96,6 +96,10 @@ function Participant(name) {
 
 	Object.defineProperty(this, 'rtcPeer', { writable: true});
 
+	this.setVideoActive = function(active) {
+		video.style.visibility = active ? 'visible' : 'hidden';
+	};
+
 	this.dispose = function() {
 		console.log('Disposing participant ' + this.name);
 		this.rtcPeer.dispose();
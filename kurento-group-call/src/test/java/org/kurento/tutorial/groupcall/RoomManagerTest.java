@@ -0,0 +1,180 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaPipeline;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Joins rooms from many threads at once against a fake pipeline pool, and checks that a single
+ * pipeline is borrowed for each room.
+ */
+public class RoomManagerTest {
+
+  private static final int JOINS = 1000;
+  private static final int ROOMS = 10;
+
+  private final AtomicInteger borrowed = new AtomicInteger();
+  private final AtomicBoolean failNextBorrow = new AtomicBoolean();
+
+  private RoomManager roomManager;
+  private ExecutorService joiners;
+  // Completes the borrows later, as the media server would
+  private ExecutorService mediaServer;
+
+  @Before
+  public void setUp() {
+    joiners = Executors.newFixedThreadPool(64);
+    mediaServer = Executors.newFixedThreadPool(4);
+
+    MediaPipelinePool pipelinePool = mock(MediaPipelinePool.class);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        @SuppressWarnings("unchecked")
+        final Continuation<MediaPipeline> cont = invocation.getArgument(0);
+        final boolean fail = failNextBorrow.getAndSet(false);
+        if (!fail) {
+          borrowed.incrementAndGet();
+        }
+        mediaServer.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              Thread.sleep(20);
+              if (fail) {
+                cont.onError(new IllegalStateException("Media server not available"));
+              } else {
+                cont.onSuccess(mock(MediaPipeline.class));
+              }
+            } catch (Exception e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+        return null;
+      }
+    }).when(pipelinePool).borrow(any(Continuation.class));
+
+    roomManager = new RoomManager();
+    ReflectionTestUtils.setField(roomManager, "pipelinePool", pipelinePool);
+    ReflectionTestUtils.setField(roomManager, "messageSender", mock(OutboundMessageSender.class));
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    joiners.shutdownNow();
+    mediaServer.shutdownNow();
+    joiners.awaitTermination(10, TimeUnit.SECONDS);
+    mediaServer.awaitTermination(10, TimeUnit.SECONDS);
+    ReflectionTestUtils.invokeMethod(roomManager, "shutdown");
+  }
+
+  @Test
+  public void simultaneousJoinsCreateOnePipelinePerRoom() throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Future<Room>> joins = new ArrayList<>();
+    for (int i = 0; i < JOINS; i++) {
+      final String roomName = "room" + i % ROOMS;
+      joins.add(joiners.submit(new Callable<Room>() {
+        @Override
+        public Room call() throws Exception {
+          start.await();
+          return roomManager.getRoomAsync(roomName).get(10, TimeUnit.SECONDS);
+        }
+      }));
+    }
+    start.countDown();
+
+    Map<String, Room> rooms = new HashMap<>();
+    for (Future<Room> join : joins) {
+      Room room = join.get(30, TimeUnit.SECONDS);
+      assertNotNull(room);
+      Room first = rooms.get(room.getName());
+      if (first == null) {
+        rooms.put(room.getName(), room);
+      } else {
+        assertSame("Room " + room.getName(), first, room);
+      }
+    }
+
+    assertEquals(ROOMS, rooms.size());
+    assertEquals(ROOMS, borrowed.get());
+    for (Room room : rooms.values()) {
+      assertSame(room, roomManager.getRoom(room.getName()));
+    }
+  }
+
+  @Test
+  public void joinAfterFailedCreationBorrowsAgain() throws Exception {
+    failNextBorrow.set(true);
+    CompletableFuture<Room> failed = roomManager.getRoomAsync("room");
+    try {
+      failed.get(10, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    assertTrue(failed.isCompletedExceptionally());
+
+    Room room = roomManager.getRoomAsync("room").get(10, TimeUnit.SECONDS);
+    assertNotNull(room);
+    assertEquals(1, borrowed.get());
+  }
+
+  @Test
+  public void joinAfterRemovalCreatesNewRoom() throws Exception {
+    Room room = roomManager.getRoomAsync("room").get(10, TimeUnit.SECONDS);
+    roomManager.removeRoom(room);
+    assertTrue(room.isClosed());
+
+    Room newRoom = roomManager.getRoomAsync("room").get(10, TimeUnit.SECONDS);
+    assertNotSame(room, newRoom);
+    assertEquals(2, borrowed.get());
+  }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Registers and removes users from many threads at once, and checks that both indexes of the
+ * registry always agree.
+ */
+public class UserRegistryTest {
+
+  private static final int THREADS = 16;
+  private static final int ROUNDS = 500;
+  // Few names, so threads keep competing for them
+  private static final int NAMES = 8;
+
+  private final AtomicInteger sessionIds = new AtomicInteger();
+
+  private UserRegistry registry;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    registry = new UserRegistry();
+    executor = Executors.newFixedThreadPool(THREADS);
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    executor.shutdownNow();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void onlyOneSessionGetsEachName() throws Exception {
+    for (int round = 0; round < ROUNDS; round++) {
+      final String name = "user" + round;
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (int i = 0; i < THREADS; i++) {
+        final UserSession user = newUser(name);
+        results.add(executor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            start.await();
+            return registry.register(user);
+          }
+        }));
+      }
+      start.countDown();
+
+      int registered = 0;
+      for (Future<Boolean> result : results) {
+        if (result.get(10, TimeUnit.SECONDS)) {
+          registered++;
+        }
+      }
+      assertEquals("Registrations of " + name, 1, registered);
+      UserSession winner = registry.getByName(name);
+      assertSame(winner, registry.getBySession(winner.getSession()));
+    }
+    assertEquals(ROUNDS, registry.size());
+    assertEquals(ROUNDS, registry.getRegistrations());
+  }
+
+  @Test
+  public void indexesAgreeWhileRegisteringAndRemoving() throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Future<Void>> results = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      final int thread = i;
+      results.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          start.await();
+          for (int round = 0; round < ROUNDS; round++) {
+            UserSession user = newUser("user" + (thread + round) % NAMES);
+            if (registry.register(user)) {
+              // Nobody else can take the name or remove the session while it is registered
+              assertSame(user, registry.getByName(user.getName()));
+              assertSame(user, registry.getBySession(user.getSession()));
+              assertSame(user, registry.removeBySession(user.getSession()));
+            }
+            assertNull(registry.getBySession(user.getSession()));
+            assertFalse(registry.getByName(user.getName()) == user);
+          }
+          return null;
+        }
+      }));
+    }
+    start.countDown();
+    for (Future<Void> result : results) {
+      result.get(30, TimeUnit.SECONDS);
+    }
+
+    assertEquals(0, registry.size());
+    for (int i = 0; i < NAMES; i++) {
+      assertFalse(registry.exists("user" + i));
+    }
+    assertTrue(registry.getRegistrations() > 0);
+    assertEquals(registry.getRegistrations(), registry.getRemovals());
+  }
+
+  private UserSession newUser(String name) {
+    WebSocketSession session = mock(WebSocketSession.class);
+    when(session.getId()).thenReturn(Integer.toString(sessionIds.incrementAndGet()));
+    UserSession user = mock(UserSession.class);
+    when(user.getName()).thenReturn(name);
+    when(user.getSession()).thenReturn(session);
+    return user;
+  }
+
+}
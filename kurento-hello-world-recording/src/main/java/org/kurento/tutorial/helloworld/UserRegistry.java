@@ -16,13 +16,17 @@
  */
 package org.kurento.tutorial.helloworld;
 
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.springframework.web.socket.WebSocketSession;
 
 /**
  * Map of users registered in the system. This class has a concurrent hash map to store users, using
- * its name as key in the map.
+ * their session id as key in the map.
  * 
  * @author Boni Garcia (bgarcia@gsyc.es)
  * @author Micael Gallego (micael.gallego@gmail.com)
@@ -30,10 +34,22 @@ import org.springframework.web.socket.WebSocketSession;
  */
 public class UserRegistry {
 
-  private ConcurrentHashMap<String, UserSession> usersBySessionId = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, UserSession> usersBySessionId = new ConcurrentHashMap<>();
 
-  public void register(UserSession user) {
-    usersBySessionId.put(user.getId(), user);
+  private final AtomicLong registrations = new AtomicLong();
+  private final AtomicLong removals = new AtomicLong();
+
+  /**
+   * Registers a user. As a session records one video at a time, a new recording of the same session
+   * replaces the previous user in a single atomic operation.
+   *
+   * @param user
+   *          the user to register
+   * @return the user previously registered with the same id, or null if there was none
+   */
+  public UserSession register(UserSession user) {
+    registrations.incrementAndGet();
+    return usersBySessionId.put(user.getId(), user);
   }
 
   public UserSession getById(String id) {
@@ -45,15 +61,54 @@ public class UserRegistry {
   }
 
   public boolean exists(String id) {
-    return usersBySessionId.keySet().contains(id);
+    return usersBySessionId.containsKey(id);
+  }
+
+  /**
+   * Checks the presence of several users at once.
+   *
+   * @param ids
+   *          the ids to look for
+   * @return the ids that are registered
+   */
+  public Set<String> getPresent(Collection<String> ids) {
+    final Set<String> present = new HashSet<>();
+    for (final String id : ids) {
+      if (usersBySessionId.containsKey(id)) {
+        present.add(id);
+      }
+    }
+    return present;
   }
 
   public UserSession removeBySession(WebSocketSession session) {
-    final UserSession user = getBySession(session);
+    final UserSession user = usersBySessionId.remove(session.getId());
     if (user != null) {
-      usersBySessionId.remove(session.getId());
+      removals.incrementAndGet();
     }
     return user;
   }
 
+  public int size() {
+    return usersBySessionId.size();
+  }
+
+  /**
+   * Number of successful registrations since startup.
+   *
+   * @return the number of registrations
+   */
+  public long getRegistrations() {
+    return registrations.get();
+  }
+
+  /**
+   * Number of users removed since startup.
+   *
+   * @return the number of removals
+   */
+  public long getRemovals() {
+    return removals.get();
+  }
+
 }
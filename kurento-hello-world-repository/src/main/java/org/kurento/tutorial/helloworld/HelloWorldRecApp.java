@@ -15,6 +15,9 @@
  */
 package org.kurento.tutorial.helloworld;
 
+import java.net.URI;
+import java.nio.file.Paths;
+
 import org.kurento.client.KurentoClient;
 import org.kurento.repository.RepositoryClient;
 import org.kurento.repository.RepositoryClientProvider;
@@ -41,6 +44,9 @@ public class HelloWorldRecApp implements WebSocketConfigurer {
   protected static final String REPOSITORY_SERVER_URI = System.getProperty("repository.uri",
       DEFAULT_REPOSITORY_SERVER_URI);
 
+  // Only set when the media server cannot read the recordings of a local repository from disk
+  protected static final String APP_SERVER_URL = System.getProperty("app.server.url");
+
   @Bean
   public HelloWorldRecHandler handler() {
     return new HelloWorldRecHandler();
@@ -58,7 +64,8 @@ public class HelloWorldRecApp implements WebSocketConfigurer {
 
   @Bean
   public RepositoryClient repositoryServiceProvider() {
-    return REPOSITORY_SERVER_URI.startsWith("file://") ? null
+    return REPOSITORY_SERVER_URI.startsWith("file://")
+        ? new LocalRepositoryClient(Paths.get(URI.create(REPOSITORY_SERVER_URI)), APP_SERVER_URL)
         : RepositoryClientProvider.create(REPOSITORY_SERVER_URI);
   }
 
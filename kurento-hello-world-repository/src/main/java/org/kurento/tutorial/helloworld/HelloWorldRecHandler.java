@@ -16,10 +16,17 @@
 package org.kurento.tutorial.helloworld;
 
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Collections;
-import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
 
 import org.kurento.client.EndOfStreamEvent;
 import org.kurento.client.ErrorEvent;
@@ -61,12 +68,25 @@ public class HelloWorldRecHandler extends TextWebSocketHandler {
   // slightly larger timeout
   private static final int REPOSITORY_DISCONNECT_TIMEOUT = 5500;
 
-  private static final String RECORDING_EXT = ".webm";
-
   private final Logger log = LoggerFactory.getLogger(HelloWorldRecHandler.class);
-  private final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-S");
   private final Gson gson = new GsonBuilder().create();
 
+  // Waits for recordings to be ready and resumes the play requests parked on them
+  private final ScheduledExecutorService repositoryExecutor = Executors.newScheduledThreadPool(
+      Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "repository-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  // Last play request of each session waiting for its recording, by session id
+  private final ConcurrentMap<String, JsonObject> parkedPlays = new ConcurrentHashMap<>();
+
   @Autowired
   private UserRegistry registry;
 
@@ -96,7 +116,7 @@ public class HelloWorldRecHandler extends TextWebSocketHandler {
       case "stop":
       case "stopPlay":
         if (user != null) {
-          user.release();
+          user.release(repositoryExecutor, isLocalRepository() ? 0 : REPOSITORY_DISCONNECT_TIMEOUT);
         }
         break;
       case "play":
@@ -119,9 +139,19 @@ public class HelloWorldRecHandler extends TextWebSocketHandler {
     }
   }
 
+  private boolean isLocalRepository() {
+    return repositoryClient instanceof LocalRepositoryClient;
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    repositoryExecutor.shutdownNow();
+  }
+
   @Override
   public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
     super.afterConnectionClosed(session, status);
+    parkedPlays.remove(session.getId());
     registry.removeBySession(session);
   }
 
@@ -129,22 +159,18 @@ public class HelloWorldRecHandler extends TextWebSocketHandler {
     try {
       // 0. Repository logic
       RepositoryItemRecorder repoItem = null;
-      if (repositoryClient != null) {
-        try {
-          Map<String, String> metadata = Collections.emptyMap();
-          repoItem = repositoryClient.createRepositoryItem(metadata);
-        } catch (Exception e) {
-          log.warn("Unable to create kurento repository items", e);
-        }
-      } else {
-        String now = df.format(new Date());
-        String filePath = HelloWorldRecApp.REPOSITORY_SERVER_URI + now + RECORDING_EXT;
-        repoItem = new RepositoryItemRecorder();
-        repoItem.setId(now);
-        repoItem.setUrl(filePath);
+      try {
+        // Indexed by the repository, so recordings can be found by session, time or profile
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("session", session.getId());
+        metadata.put("startTime", String.valueOf(System.currentTimeMillis()));
+        metadata.put("profile", MediaProfileSpecType.WEBM.name());
+        repoItem = repositoryClient.createRepositoryItem(metadata);
+      } catch (Exception e) {
+        log.warn("Unable to create kurento repository items", e);
       }
       log.info("Media will be recorded {}by KMS: id={} , url={}",
-          (repositoryClient == null ? "locally " : ""), repoItem.getId(), repoItem.getUrl());
+          (isLocalRepository() ? "locally " : ""), repoItem.getId(), repoItem.getUrl());
 
       // 1. Media logic (webRtcEndpoint in loopback)
       MediaPipeline pipeline = kurento.createMediaPipeline();
@@ -158,6 +184,7 @@ public class HelloWorldRecHandler extends TextWebSocketHandler {
       UserSession user = new UserSession(session);
       user.setMediaPipeline(pipeline);
       user.setWebRtcEndpoint(webRtcEndpoint);
+      user.setRecorder(recorder);
       user.setRepoItem(repoItem);
       registry.register(user);
 
@@ -200,38 +227,54 @@ public class HelloWorldRecHandler extends TextWebSocketHandler {
     }
   }
 
-  private void play(UserSession user, final WebSocketSession session, JsonObject jsonMessage) {
+  /**
+   * Plays the last recording of a user once it is ready. Until then, the request is parked on the
+   * readiness of the recording, without holding any thread. Only the last request of a session is
+   * kept, and it is dropped if the session is closed or has started a new recording meanwhile.
+   */
+  private void play(final UserSession user, final WebSocketSession session,
+      final JsonObject jsonMessage) {
+    CompletableFuture<Void> ready = user != null ? user.getRecordingReady() : null;
+    if (ready == null || ready.isDone()) {
+      doPlay(user, session, jsonMessage);
+      return;
+    }
+
+    if (parkedPlays.put(session.getId(), jsonMessage) != null) {
+      log.debug("Play request of session '{}' replaces the one already waiting", session.getId());
+      return;
+    }
+
+    log.info("Play request of session '{}' waits for its recording to be ready",
+        session.getId());
+    ready.thenRunAsync(new Runnable() {
+      @Override
+      public void run() {
+        JsonObject lastMessage = parkedPlays.remove(session.getId());
+        if (lastMessage == null) {
+          return;
+        }
+        if (!session.isOpen() || registry.getBySession(session) != user) {
+          log.info("Dropping play request of session '{}': the session is gone",
+              session.getId());
+          return;
+        }
+        doPlay(user, session, lastMessage);
+      }
+    }, repositoryExecutor);
+  }
+
+  private void doPlay(UserSession user, final WebSocketSession session, JsonObject jsonMessage) {
     try {
       // 0. Repository logic
       RepositoryItemPlayer itemPlayer = null;
-      if (repositoryClient != null) {
-        try {
-          Date stopTimestamp = user.getStopTimestamp();
-          if (stopTimestamp != null) {
-            Date now = new Date();
-            long diff = now.getTime() - stopTimestamp.getTime();
-            if (diff >= 0 && diff < REPOSITORY_DISCONNECT_TIMEOUT) {
-              log.info(
-                  "Waiting for {}ms before requesting the repository read endpoint "
-                      + "(requires {}ms before upload is considered terminated "
-                      + "and only {}ms have passed)",
-                      REPOSITORY_DISCONNECT_TIMEOUT - diff, REPOSITORY_DISCONNECT_TIMEOUT, diff);
-              Thread.sleep(REPOSITORY_DISCONNECT_TIMEOUT - diff);
-            }
-          } else {
-            log.warn("No stop timeout was found, repository endpoint might not be ready");
-          }
-          itemPlayer = repositoryClient.getReadEndpoint(user.getRepoItem().getId());
-        } catch (Exception e) {
-          log.warn("Unable to obtain kurento repository endpoint", e);
-        }
-      } else {
-        itemPlayer = new RepositoryItemPlayer();
-        itemPlayer.setId(user.getRepoItem().getId());
-        itemPlayer.setUrl(user.getRepoItem().getUrl());
+      try {
+        itemPlayer = repositoryClient.getReadEndpoint(user.getRepoItem().getId());
+      } catch (Exception e) {
+        log.warn("Unable to obtain kurento repository endpoint", e);
       }
       log.debug("Playing from {}: id={}, url={}",
-          (repositoryClient == null ? "disk" : "repository"), itemPlayer.getId(),
+          (isLocalRepository() ? "disk" : "repository"), itemPlayer.getId(),
           itemPlayer.getUrl());
 
       // 1. Media logic
@@ -0,0 +1,241 @@
+/*
+ * (C) Copyright 2014-2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kurento.tutorial.helloworld;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.kurento.repository.RepositoryClient;
+import org.kurento.repository.service.pojo.RepositoryItemPlayer;
+import org.kurento.repository.service.pojo.RepositoryItemRecorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import retrofit.client.Header;
+import retrofit.client.Response;
+
+/**
+ * Repository kept in a local directory, for when the media server shares the filesystem of the
+ * application and no Kurento Repository Server is needed.
+ * <p>
+ * Each item is a media file, {@code <id>.webm}, and a properties file with its metadata. The media
+ * server records straight to the media file and, by default, plays it back from the same file. If
+ * the URL of this application is given, items are played back from this application instead,
+ * which serves them over HTTP with range requests (see {@link RepositoryItemController}); the
+ * media server must then be able to reach that URL and accept its certificate.
+ */
+public class LocalRepositoryClient implements RepositoryClient {
+
+  private static final Logger log = LoggerFactory.getLogger(LocalRepositoryClient.class);
+
+  public static final String ITEMS_PATH = "/repository/items";
+
+  private static final String MEDIA_EXT = ".webm";
+  private static final String METADATA_EXT = ".properties";
+
+  private final Path root;
+  private final String appServerUrl;
+
+  /**
+   * @param root
+   *          directory of the items, created if it does not exist
+   * @param appServerUrl
+   *          URL of this application, as seen from the media server, or {@code null} to play the
+   *          items from their files
+   */
+  public LocalRepositoryClient(Path root, String appServerUrl) {
+    this.root = root;
+    this.appServerUrl = appServerUrl;
+    try {
+      Files.createDirectories(root);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not create repository directory " + root, e);
+    }
+    log.info("Local repository in {}", root);
+  }
+
+  @Override
+  public RepositoryItemRecorder createRepositoryItem(Map<String, String> metadata) {
+    String id = UUID.randomUUID().toString();
+    writeMetadata(id, metadata);
+
+    RepositoryItemRecorder item = new RepositoryItemRecorder();
+    item.setId(id);
+    item.setUrl(getMediaFile(id).toUri().toString());
+    return item;
+  }
+
+  @Override
+  public RepositoryItemPlayer getReadEndpoint(String itemId) {
+    checkExists(itemId);
+
+    RepositoryItemPlayer item = new RepositoryItemPlayer();
+    item.setId(itemId);
+    item.setUrl(getItemUrl(itemId));
+    return item;
+  }
+
+  @Override
+  public Response removeRepositoryItem(String itemId) {
+    checkExists(itemId);
+    try {
+      Files.deleteIfExists(getMediaFile(itemId));
+      Files.deleteIfExists(getMetadataFile(itemId));
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not remove repository item " + itemId, e);
+    }
+    return response(itemId);
+  }
+
+  @Override
+  public Map<String, String> getRepositoryItemMetadata(String itemId) {
+    checkExists(itemId);
+    return readMetadata(itemId);
+  }
+
+  @Override
+  public Response setRepositoryItemMetadata(String itemId, Map<String, String> metadata) {
+    checkExists(itemId);
+    writeMetadata(itemId, metadata);
+    return response(itemId);
+  }
+
+  @Override
+  public Set<String> simpleFindItems(Map<String, String> searchValues) {
+    Set<String> result = new HashSet<>();
+    for (String id : getItemIds()) {
+      if (readMetadata(id).entrySet().containsAll(searchValues.entrySet())) {
+        result.add(id);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public Set<String> regexFindItems(Map<String, String> searchValues) {
+    Map<String, Pattern> patterns = new HashMap<>();
+    for (Map.Entry<String, String> entry : searchValues.entrySet()) {
+      patterns.put(entry.getKey(), Pattern.compile(entry.getValue()));
+    }
+
+    Set<String> result = new HashSet<>();
+    for (String id : getItemIds()) {
+      Map<String, String> metadata = readMetadata(id);
+      boolean matches = true;
+      for (Map.Entry<String, Pattern> entry : patterns.entrySet()) {
+        String value = metadata.get(entry.getKey());
+        if (value == null || !entry.getValue().matcher(value).matches()) {
+          matches = false;
+          break;
+        }
+      }
+      if (matches) {
+        result.add(id);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Media file of an item.
+   *
+   * @param itemId
+   *          the id of the item
+   * @return the file, or null if the id is not a valid item id
+   */
+  public Path getMediaFile(String itemId) {
+    return isValidId(itemId) ? root.resolve(itemId + MEDIA_EXT) : null;
+  }
+
+  private Path getMetadataFile(String itemId) {
+    return root.resolve(itemId + METADATA_EXT);
+  }
+
+  private boolean isValidId(String itemId) {
+    // Ids are generated by this class, anything else could point out of the repository
+    try {
+      return UUID.fromString(itemId).toString().equals(itemId);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private void checkExists(String itemId) {
+    if (!isValidId(itemId) || !Files.exists(getMetadataFile(itemId))) {
+      throw new IllegalArgumentException("Repository item " + itemId + " does not exist");
+    }
+  }
+
+  private Set<String> getItemIds() {
+    Set<String> ids = new HashSet<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(root, "*" + METADATA_EXT)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        ids.add(name.substring(0, name.length() - METADATA_EXT.length()));
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not list repository items", e);
+    }
+    return ids;
+  }
+
+  private Map<String, String> readMetadata(String itemId) {
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(getMetadataFile(itemId))) {
+      properties.load(in);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not read metadata of repository item " + itemId, e);
+    }
+
+    Map<String, String> metadata = new HashMap<>();
+    for (String key : properties.stringPropertyNames()) {
+      metadata.put(key, properties.getProperty(key));
+    }
+    return metadata;
+  }
+
+  private void writeMetadata(String itemId, Map<String, String> metadata) {
+    Properties properties = new Properties();
+    properties.putAll(metadata);
+    try (OutputStream out = Files.newOutputStream(getMetadataFile(itemId))) {
+      properties.store(out, null);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not write metadata of repository item " + itemId, e);
+    }
+  }
+
+  private Response response(String itemId) {
+    return new Response(getItemUrl(itemId), 200, "OK", Collections.<Header> emptyList(), null);
+  }
+
+  private String getItemUrl(String itemId) {
+    return appServerUrl != null ? appServerUrl + ITEMS_PATH + "/" + itemId
+        : getMediaFile(itemId).toUri().toString();
+  }
+
+}
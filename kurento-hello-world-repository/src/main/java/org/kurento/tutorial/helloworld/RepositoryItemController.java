@@ -0,0 +1,121 @@
+/*
+ * (C) Copyright 2014-2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kurento.tutorial.helloworld;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.kurento.repository.RepositoryClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Serves the media of the items of a {@link LocalRepositoryClient}, with support for single byte
+ * ranges so players can seek. Only used when the media server plays the items over HTTP.
+ * <p>
+ * When the connector supports it (Tomcat announces it with the
+ * {@code org.apache.tomcat.sendfile.support} request attribute), the range is handed to the
+ * container, which sends it from the file with {@code sendfile} and no copy in the application.
+ * That is not possible over TLS, where the bytes are encrypted in user space, so there the range
+ * is streamed in chunks through a heap buffer, without loading the whole file in memory.
+ */
+@RestController
+public class RepositoryItemController {
+
+  private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+  @Autowired
+  private RepositoryClient repositoryClient;
+
+  @RequestMapping(value = LocalRepositoryClient.ITEMS_PATH + "/{itemId}",
+      method = RequestMethod.GET)
+  public void getItem(@PathVariable String itemId, HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    Path file = repositoryClient instanceof LocalRepositoryClient
+        ? ((LocalRepositoryClient) repositoryClient).getMediaFile(itemId) : null;
+    if (file == null || !Files.isRegularFile(file)) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      long start = 0;
+      long end = size - 1;
+
+      String range = request.getHeader("Range");
+      if (range != null && range.startsWith("bytes=") && !range.contains(",")) {
+        String[] bounds = range.substring("bytes=".length()).split("-", 2);
+        try {
+          if (bounds[0].isEmpty()) {
+            start = Math.max(0, size - Long.parseLong(bounds[1].trim()));
+          } else {
+            start = Long.parseLong(bounds[0].trim());
+            if (bounds.length > 1 && !bounds[1].trim().isEmpty()) {
+              end = Math.min(end, Long.parseLong(bounds[1].trim()));
+            }
+          }
+        } catch (NumberFormatException e) {
+          start = size;
+        }
+        if (start >= size || start > end) {
+          response.setHeader("Content-Range", "bytes */" + size);
+          response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+          return;
+        }
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + size);
+      }
+
+      long length = end - start + 1;
+      response.setContentType("video/webm");
+      response.setHeader("Accept-Ranges", "bytes");
+      response.setHeader("Content-Length", Long.toString(length));
+
+      if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+        request.setAttribute(SENDFILE_FILENAME, file.toFile().getCanonicalPath());
+        request.setAttribute(SENDFILE_START, Long.valueOf(start));
+        request.setAttribute(SENDFILE_END, Long.valueOf(end + 1));
+        return;
+      }
+
+      WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+      long position = start;
+      while (position <= end) {
+        long sent = channel.transferTo(position, end + 1 - position, out);
+        if (sent <= 0) {
+          break;
+        }
+        position += sent;
+      }
+    }
+  }
+
+}
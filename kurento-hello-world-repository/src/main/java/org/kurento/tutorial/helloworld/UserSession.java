@@ -16,11 +16,21 @@
 package org.kurento.tutorial.helloworld;
 
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.kurento.client.Continuation;
+import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.MediaPipeline;
+import org.kurento.client.RecorderEndpoint;
+import org.kurento.client.StoppedEvent;
 import org.kurento.client.WebRtcEndpoint;
 import org.kurento.repository.service.pojo.RepositoryItemRecorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.WebSocketSession;
 
 /**
@@ -31,11 +41,19 @@ import org.springframework.web.socket.WebSocketSession;
  * @since 6.1.1
  */
 public class UserSession {
+
+  private static final Logger log = LoggerFactory.getLogger(UserSession.class);
+
+  // Time to wait for the recorder to stop before releasing its pipeline anyway
+  private static final long STOP_TIMEOUT = 5000;
+
   private String id;
   private WebRtcEndpoint webRtcEndpoint;
   private MediaPipeline mediaPipeline;
+  private RecorderEndpoint recorder;
   private RepositoryItemRecorder repoItem;
   private Date stopTimestamp;
+  private volatile CompletableFuture<Void> recordingReady = CompletableFuture.completedFuture(null);
 
   public UserSession(WebSocketSession session) {
     this.id = session.getId();
@@ -65,6 +83,25 @@ public class UserSession {
     this.mediaPipeline = mediaPipeline;
   }
 
+  /**
+   * Sets the recorder of the session. Its recording is not ready to be played until the session is
+   * released.
+   *
+   * @param recorder
+   *          the recorder
+   */
+  public void setRecorder(RecorderEndpoint recorder) {
+    this.recorder = recorder;
+    this.recordingReady = new CompletableFuture<>();
+  }
+
+  /**
+   * @return a future completed once the last recording of the session can be played
+   */
+  public CompletableFuture<Void> getRecordingReady() {
+    return recordingReady;
+  }
+
   public RepositoryItemRecorder getRepoItem() {
     return repoItem;
   }
@@ -81,12 +118,81 @@ public class UserSession {
     return stopTimestamp;
   }
 
-  public void release() {
-    this.mediaPipeline.release();
+  /**
+   * Releases the media of the session. A recording in progress is stopped first, and becomes ready
+   * once the recorder has stopped and {@code uploadTimeout} ms have passed, the time the repository
+   * waits without data before closing an upload. Nothing blocks meanwhile: the pipeline is released
+   * on the {@link StoppedEvent} of the recorder, or after {@code uploadTimeout} ms if the event does
+   * not come, and the recording is marked as ready by a task of {@code scheduler}.
+   *
+   * @param scheduler
+   *          executor of the delayed tasks
+   * @param uploadTimeout
+   *          time to wait after the recorder has stopped, zero when recording to a local file
+   */
+  public void release(final ScheduledExecutorService scheduler, final long uploadTimeout) {
+    final MediaPipeline pipeline = this.mediaPipeline;
+    final RecorderEndpoint recorder = this.recorder;
+    final CompletableFuture<Void> ready = this.recordingReady;
     this.webRtcEndpoint = null;
     this.mediaPipeline = null;
+    this.recorder = null;
     if (this.stopTimestamp == null) {
       this.stopTimestamp = new Date();
     }
+
+    if (pipeline == null) {
+      return;
+    }
+    if (recorder == null) {
+      pipeline.release();
+      return;
+    }
+
+    final AtomicBoolean stopped = new AtomicBoolean();
+    final Runnable onStopped = new Runnable() {
+      @Override
+      public void run() {
+        if (!stopped.compareAndSet(false, true)) {
+          return;
+        }
+        pipeline.release(new Continuation<Void>() {
+          @Override
+          public void onSuccess(Void result) throws Exception {
+          }
+
+          @Override
+          public void onError(Throwable cause) throws Exception {
+            log.warn("Could not release pipeline of session {}: {}", id, cause.getMessage());
+          }
+        });
+        scheduler.schedule(new Runnable() {
+          @Override
+          public void run() {
+            ready.complete(null);
+          }
+        }, uploadTimeout, TimeUnit.MILLISECONDS);
+      }
+    };
+
+    recorder.addStoppedListener(new EventListener<StoppedEvent>() {
+      @Override
+      public void onEvent(StoppedEvent event) {
+        log.debug("Recorder of session {} stopped", id);
+        onStopped.run();
+      }
+    });
+    recorder.stop(new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("Could not stop recorder of session {}: {}", id, cause.getMessage());
+        onStopped.run();
+      }
+    });
+    scheduler.schedule(onStopped, Math.max(uploadTimeout, STOP_TIMEOUT), TimeUnit.MILLISECONDS);
   }
 }
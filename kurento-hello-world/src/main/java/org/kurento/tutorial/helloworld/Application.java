@@ -37,12 +37,32 @@ public class Application implements WebSocketConfigurer
     return new Handler();
   }
 
+  @Bean
+  public OutboundMessageSender outboundMessageSender()
+  {
+    return new OutboundMessageSender(Integer.getInteger("outbound.queueCapacity", 256),
+        OutboundMessageSender.OverflowPolicy
+            .valueOf(System.getProperty("outbound.overflowPolicy", "DISCONNECT")),
+        Long.getLong("outbound.sendTimeout", 10000),
+        Integer.getInteger("outbound.writerThreads", Runtime.getRuntime().availableProcessors()));
+  }
+
   @Bean
   public KurentoClient kurentoClient()
   {
     return KurentoClient.create();
   }
 
+  @Bean
+  public MediaPipelinePool pipelinePool()
+  {
+    return new MediaPipelinePool(kurentoClient(),
+        Integer.getInteger("pipelinePool.warmSize", 2),
+        Integer.getInteger("pipelinePool.maxSize", 8),
+        Long.getLong("pipelinePool.idleTimeout", 60000),
+        Long.getLong("pipelinePool.checkInterval", 30000));
+  }
+
   @Override
   public void registerWebSocketHandlers(WebSocketHandlerRegistry registry)
   {
@@ -34,7 +34,6 @@ import org.springframework.web.socket.handler.TextWebSocketHandler;
 import org.kurento.client.BaseRtpEndpoint;
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
-import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.WebRtcEndpoint;
 import org.kurento.jsonrpc.JsonUtils;
@@ -64,7 +63,10 @@ public class Handler extends TextWebSocketHandler
       new ConcurrentHashMap<>();
 
   @Autowired
-  private KurentoClient kurento;
+  private MediaPipelinePool pipelinePool;
+
+  @Autowired
+  private OutboundMessageSender messageSender;
 
   /**
    * Invoked after WebSocket negotiation has succeeded and the WebSocket connection is
@@ -94,6 +96,7 @@ public class Handler extends TextWebSocketHandler
     }
 
     stop(session);
+    messageSender.remove(session);
   }
 
   /**
@@ -152,7 +155,7 @@ public class Handler extends TextWebSocketHandler
     session.close(CloseStatus.SERVER_ERROR);
   }
 
-  private synchronized void sendMessage(final WebSocketSession session,
+  private void sendMessage(final WebSocketSession session,
       String message)
   {
     log.debug("[Handler::sendMessage] {}", message);
@@ -169,11 +172,7 @@ public class Handler extends TextWebSocketHandler
       return;
     }
 
-    try {
-      session.sendMessage(new TextMessage(message));
-    } catch (IOException ex) {
-      log.error("[Handler::sendMessage] Exception: {}", ex.getMessage());
-    }
+    messageSender.send(session, message);
   }
 
   private void sendError(final WebSocketSession session, String errMsg)
@@ -383,9 +382,9 @@ public class Handler extends TextWebSocketHandler
 
     // ---- Media pipeline
 
-    log.info("[Handler::handleStart] Create Media Pipeline");
+    log.info("[Handler::handleStart] Borrow Media Pipeline");
 
-    final MediaPipeline pipeline = kurento.createMediaPipeline();
+    final MediaPipeline pipeline = pipelinePool.borrow();
     user.setMediaPipeline(pipeline);
 
     final WebRtcEndpoint webRtcEp =
@@ -450,8 +449,8 @@ public class Handler extends TextWebSocketHandler
     if (user != null) {
       MediaPipeline mediaPipeline = user.getMediaPipeline();
       if (mediaPipeline != null) {
-        log.info("[Handler::stop] Release the Media Pipeline");
-        mediaPipeline.release();
+        log.info("[Handler::stop] Give back the Media Pipeline");
+        pipelinePool.giveBack(mediaPipeline, user.getWebRtcEndpoint());
       }
     }
   }
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.helloworld;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaPipeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of media pipelines created in advance, so the first user of a room or session does not have
+ * to wait for a full round trip to the media server before its endpoints can be built.
+ * <p>
+ * The pool keeps {@code warmSize} idle pipelines ready, creating them asynchronously whenever one is
+ * borrowed. Pipelines given back are kept idle only if they are still empty, up to {@code maxSize}
+ * idle pipelines; otherwise they are released. Idle pipelines over the warm size are evicted after
+ * {@code idleTimeout}, and all idle pipelines are periodically checked against the media server,
+ * so a restarted server does not leave dead pipelines in the pool.
+ */
+public class MediaPipelinePool
+{
+
+  private static final Logger log = LoggerFactory.getLogger(MediaPipelinePool.class);
+
+  private final KurentoClient kurento;
+  private final int warmSize;
+  private final int maxSize;
+  private final long idleTimeoutMillis;
+
+  private final Deque<IdlePipeline> idle = new ArrayDeque<>();
+  private int pendingCreations;
+  private boolean closed;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  private final ScheduledExecutorService maintainer = Executors
+      .newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "pipeline-pool");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private static class IdlePipeline
+  {
+    private final MediaPipeline pipeline;
+    private final long idleSince = System.currentTimeMillis();
+
+    private IdlePipeline(MediaPipeline pipeline)
+    {
+      this.pipeline = pipeline;
+    }
+  }
+
+  /**
+   * @param kurento
+   *          client used to create the pipelines
+   * @param warmSize
+   *          number of idle pipelines the pool tries to keep ready
+   * @param maxSize
+   *          maximum number of idle pipelines kept by the pool
+   * @param idleTimeoutMillis
+   *          time after which an idle pipeline over the warm size is released
+   * @param checkIntervalMillis
+   *          period of the eviction and health checks
+   */
+  public MediaPipelinePool(KurentoClient kurento, int warmSize, int maxSize,
+      long idleTimeoutMillis, long checkIntervalMillis)
+  {
+    this.kurento = kurento;
+    this.warmSize = warmSize;
+    this.maxSize = Math.max(warmSize, maxSize);
+    this.idleTimeoutMillis = idleTimeoutMillis;
+
+    maintainer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        maintain();
+      }
+    }, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    fill();
+  }
+
+  /**
+   * Takes a ready pipeline from the pool, or creates a new one if the pool is empty. The caller
+   * owns the pipeline until it is given back.
+   *
+   * @return a pipeline with no media elements
+   */
+  public MediaPipeline borrow()
+  {
+    IdlePipeline entry;
+    synchronized (this) {
+      entry = idle.pollFirst();
+    }
+    fill();
+
+    if (entry != null) {
+      hits.incrementAndGet();
+      log.debug("Borrowed pipeline {} from pool", entry.pipeline.getId());
+      return entry.pipeline;
+    }
+
+    misses.incrementAndGet();
+    log.debug("Pipeline pool empty, creating a pipeline on demand");
+    return kurento.createMediaPipeline();
+  }
+
+  /**
+   * Asynchronous version of {@link #borrow()}. If the pool is empty the continuation is invoked
+   * once the media server has created the pipeline, so the calling thread is never blocked.
+   *
+   * @param cont
+   *          continuation receiving the pipeline
+   */
+  public void borrow(final Continuation<MediaPipeline> cont)
+  {
+    IdlePipeline entry;
+    synchronized (this) {
+      entry = idle.pollFirst();
+    }
+    fill();
+
+    if (entry == null) {
+      misses.incrementAndGet();
+      log.debug("Pipeline pool empty, creating a pipeline on demand");
+      kurento.createMediaPipeline(cont);
+      return;
+    }
+
+    hits.incrementAndGet();
+    log.debug("Borrowed pipeline {} from pool", entry.pipeline.getId());
+    try {
+      cont.onSuccess(entry.pipeline);
+    } catch (Exception e) {
+      log.warn("Exception handling borrowed pipeline {}", entry.pipeline.getId(), e);
+    }
+  }
+
+  /**
+   * Returns a pipeline to the pool. This never blocks the caller: the elements created by the
+   * borrower are released in the background, then the pipeline is kept only if it has no media
+   * elements left and the pool is not full, otherwise it is released.
+   *
+   * @param pipeline
+   *          a pipeline previously borrowed from this pool
+   * @param elements
+   *          the media elements created in the pipeline by the borrower
+   */
+  public void giveBack(final MediaPipeline pipeline, final MediaElement... elements)
+  {
+    maintainer.execute(new Runnable() {
+      @Override
+      public void run() {
+        for (MediaElement element : elements) {
+          if (element == null) {
+            continue;
+          }
+          try {
+            element.release();
+          } catch (Exception e) {
+            log.debug("Could not release element {}: {}", element.getId(), e.getMessage());
+          }
+        }
+
+        boolean reusable = false;
+        try {
+          reusable = pipeline.getChildren().isEmpty();
+        } catch (Exception e) {
+          log.debug("Could not check pipeline {}: {}", pipeline.getId(), e.getMessage());
+        }
+
+        synchronized (MediaPipelinePool.this) {
+          if (reusable && !closed && idle.size() < maxSize) {
+            idle.addFirst(new IdlePipeline(pipeline));
+            return;
+          }
+        }
+        release(pipeline);
+      }
+    });
+  }
+
+  /**
+   * Releases a borrowed pipeline, with all its media elements, without trying to reuse it. Used
+   * when the pipeline is known to be in use, so all its elements are released in a single request.
+   *
+   * @param pipeline
+   *          a pipeline previously borrowed from this pool
+   * @param cont
+   *          continuation invoked once the pipeline is released
+   */
+  public void discard(MediaPipeline pipeline, Continuation<Void> cont)
+  {
+    pipeline.release(cont);
+  }
+
+  public synchronized int getIdleCount()
+  {
+    return idle.size();
+  }
+
+  public long getHits()
+  {
+    return hits.get();
+  }
+
+  public long getMisses()
+  {
+    return misses.get();
+  }
+
+  @PreDestroy
+  public void close()
+  {
+    List<IdlePipeline> remaining;
+    synchronized (this) {
+      closed = true;
+      remaining = new ArrayList<>(idle);
+      idle.clear();
+    }
+    maintainer.shutdownNow();
+    for (IdlePipeline entry : remaining) {
+      release(entry.pipeline);
+    }
+  }
+
+  private void fill()
+  {
+    int missing;
+    synchronized (this) {
+      missing = closed ? 0 : warmSize - idle.size() - pendingCreations;
+      if (missing <= 0) {
+        return;
+      }
+      pendingCreations += missing;
+    }
+
+    log.trace("Creating {} pipelines to keep the pool warm", missing);
+    for (int i = 0; i < missing; i++) {
+      kurento.createMediaPipeline(new Continuation<MediaPipeline>() {
+        @Override
+        public void onSuccess(MediaPipeline pipeline) throws Exception {
+          synchronized (MediaPipelinePool.this) {
+            pendingCreations--;
+            if (!closed) {
+              idle.addLast(new IdlePipeline(pipeline));
+              return;
+            }
+          }
+          release(pipeline);
+        }
+
+        @Override
+        public void onError(Throwable cause) throws Exception {
+          synchronized (MediaPipelinePool.this) {
+            pendingCreations--;
+          }
+          log.warn("Could not create pipeline for the pool: {}", cause.getMessage());
+        }
+      });
+    }
+  }
+
+  private void maintain()
+  {
+    long now = System.currentTimeMillis();
+    List<IdlePipeline> checked = new ArrayList<>();
+    List<IdlePipeline> evicted = new ArrayList<>();
+
+    synchronized (this) {
+      Iterator<IdlePipeline> it = idle.descendingIterator();
+      while (it.hasNext()) {
+        IdlePipeline entry = it.next();
+        if (idle.size() > warmSize && now - entry.idleSince > idleTimeoutMillis) {
+          it.remove();
+          evicted.add(entry);
+        } else {
+          checked.add(entry);
+        }
+      }
+    }
+
+    for (IdlePipeline entry : evicted) {
+      log.debug("Evicting idle pipeline {}", entry.pipeline.getId());
+      release(entry.pipeline);
+    }
+
+    for (IdlePipeline entry : checked) {
+      try {
+        entry.pipeline.getName();
+      } catch (Exception e) {
+        log.warn("Discarding dead pipeline {}: {}", entry.pipeline.getId(), e.getMessage());
+        synchronized (this) {
+          idle.remove(entry);
+        }
+        release(entry.pipeline);
+      }
+    }
+
+    fill();
+    log.trace("Pipeline pool: {} idle, {} hits, {} misses", getIdleCount(), hits.get(),
+        misses.get());
+  }
+
+  private void release(final MediaPipeline pipeline)
+  {
+    pipeline.release(new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.trace("Released pipeline {}", pipeline.getId());
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("Could not release pipeline {}", pipeline.getId());
+      }
+    });
+  }
+
+}
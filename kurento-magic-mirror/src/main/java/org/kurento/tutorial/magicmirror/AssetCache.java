@@ -0,0 +1,181 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.magicmirror;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Images used by the filters of the media pipelines.
+ * <p>
+ * The media server downloads the image of a filter every time a filter is configured with it. By
+ * default the images are read from their origin server, which any media server can reach. When
+ * the URL of this application is given (property {@code app.server.url}), the images are served
+ * by this application instead, which keeps that download short and lets the demo work offline;
+ * the media server must then be able to reach that URL and accept its certificate.
+ * <p>
+ * Images are loaded once, when the application starts, from {@code static/img} or, if they are
+ * not there, from their origin server. They are not handed out as the plain {@code /img/...}
+ * static resources: those are served without a cache lifetime, so every filter would make the
+ * media server fetch or revalidate them again. Each image is published by {@link AssetController}
+ * under a URL holding a hash of its content, which can be cached for good: a new version of the
+ * image gets a new URL.
+ */
+public class AssetCache {
+
+  private static final Logger log = LoggerFactory.getLogger(AssetCache.class);
+
+  public static final String PATH = "/assets";
+
+  private static final String RESOURCE_DIR = "static/img/";
+  private static final int VERSION_LENGTH = 12;
+
+  private final String appServerUrl;
+  private final String originUrl;
+  private final ConcurrentMap<String, Asset> assets = new ConcurrentHashMap<>();
+
+  /**
+   * An image and the hash of its content.
+   */
+  public static class Asset {
+    private final String name;
+    private final String version;
+    private final String contentType;
+    private final byte[] content;
+
+    private Asset(String name, String version, String contentType, byte[] content) {
+      this.name = name;
+      this.version = version;
+      this.contentType = contentType;
+      this.content = content;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getVersion() {
+      return version;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    public byte[] getContent() {
+      return content;
+    }
+  }
+
+  /**
+   * @param appServerUrl
+   *          URL of this application, as seen from the media server, or {@code null} to read the
+   *          images from their origin server
+   * @param originUrl
+   *          URL of the server the images are downloaded from when they are not resources of the
+   *          application
+   * @param names
+   *          names of the images to load
+   */
+  public AssetCache(String appServerUrl, String originUrl, String... names) {
+    this.appServerUrl = appServerUrl;
+    this.originUrl = originUrl;
+    if (appServerUrl == null) {
+      log.info("Reading images from {}", originUrl);
+      return;
+    }
+    for (String name : names) {
+      try {
+        Asset asset = load(name);
+        assets.put(name, asset);
+        log.info("Serving image {} as {}", name, getUrl(name));
+      } catch (IOException e) {
+        log.warn("Could not load image {}, it will be read from {}: {}", name, originUrl,
+            e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * URL of an image, to be given to the media server.
+   *
+   * @param name
+   *          name of the image
+   * @return the URL of the image in this application, or in its origin server if it is not served
+   *         by this application
+   */
+  public String getUrl(String name) {
+    Asset asset = assets.get(name);
+    if (asset == null) {
+      return originUrl + "/" + name;
+    }
+    return appServerUrl + PATH + "/" + asset.version + "/" + name;
+  }
+
+  public Asset get(String name) {
+    return assets.get(name);
+  }
+
+  private Asset load(String name) throws IOException {
+    InputStream in = AssetCache.class.getClassLoader().getResourceAsStream(RESOURCE_DIR + name);
+    if (in == null) {
+      in = new URL(originUrl + "/" + name).openStream();
+    }
+
+    byte[] content;
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      content = out.toByteArray();
+    } finally {
+      in.close();
+    }
+
+    String contentType = URLConnection.guessContentTypeFromName(name);
+    return new Asset(name, hash(content),
+        contentType != null ? contentType : "application/octet-stream", content);
+  }
+
+  private static String hash(byte[] content) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.substring(0, VERSION_LENGTH);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
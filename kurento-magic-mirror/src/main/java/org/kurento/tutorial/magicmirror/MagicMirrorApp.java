@@ -37,11 +37,19 @@ public class MagicMirrorApp implements WebSocketConfigurer {
 
   static final String DEFAULT_APP_SERVER_URL = "https://localhost:8443";
 
+  static final String DEFAULT_ASSET_ORIGIN_URL = "http://files.openvidu.io/img";
+
   @Bean
   public MagicMirrorHandler handler() {
     return new MagicMirrorHandler();
   }
 
+  @Bean
+  public AssetCache assetCache() {
+    return new AssetCache(System.getProperty("app.server.url"),
+        System.getProperty("assets.originUrl", DEFAULT_ASSET_ORIGIN_URL), "mario-wings.png");
+  }
+
   @Bean
   public KurentoClient kurentoClient() {
     return KurentoClient.create();
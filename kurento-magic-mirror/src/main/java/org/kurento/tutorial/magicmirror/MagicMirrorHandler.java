@@ -55,6 +55,9 @@ public class MagicMirrorHandler extends TextWebSocketHandler {
   @Autowired
   private KurentoClient kurento;
 
+  @Autowired
+  private AssetCache assets;
+
   @Override
   public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
     JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
@@ -121,11 +124,8 @@ public class MagicMirrorHandler extends TextWebSocketHandler {
       // Media logic
       FaceOverlayFilter faceOverlayFilter = new FaceOverlayFilter.Builder(pipeline).build();
 
-      //String appServerUrl = System.getProperty("app.server.url",
-      //    MagicMirrorApp.DEFAULT_APP_SERVER_URL);
-      String appServerUrl = "http://files.openvidu.io";
-      faceOverlayFilter.setOverlayedImage(appServerUrl + "/img/mario-wings.png", -0.35F, -1.2F,
-          1.6F, 1.6F);
+      faceOverlayFilter.setOverlayedImage(assets.getUrl("mario-wings.png"), -0.35F, -1.2F, 1.6F,
+          1.6F);
 
       webRtcEndpoint.connect(faceOverlayFilter);
       faceOverlayFilter.connect(webRtcEndpoint);
@@ -18,12 +18,15 @@
 package org.kurento.tutorial.one2manycall;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.kurento.client.Continuation;
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.IceCandidateFoundEvent;
-import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.WebRtcEndpoint;
 import org.kurento.jsonrpc.JsonUtils;
@@ -37,10 +40,15 @@ import org.springframework.web.socket.handler.TextWebSocketHandler;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
 /**
  * Protocol handler for 1 to N video call communication.
+ * <p>
+ * Several broadcasts can run at the same time, each one in its own named {@link Channel}, with its
+ * own presenter, pipeline and viewers. A channel is created when a presenter starts broadcasting
+ * on it and released when the presenter stops.
  *
  * @author Boni Garcia (bgarcia@gsyc.es)
  * @since 5.0.0
@@ -50,13 +58,18 @@ public class CallHandler extends TextWebSocketHandler {
   private static final Logger log = LoggerFactory.getLogger(CallHandler.class);
   private static final Gson gson = new GsonBuilder().create();
 
-  private final ConcurrentHashMap<String, UserSession> viewers = new ConcurrentHashMap<>();
+  private static final String DEFAULT_CHANNEL = "default";
+
+  private final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<>();
+
+  // Channel each session is presenting or viewing
+  private final ConcurrentHashMap<String, String> sessionChannels = new ConcurrentHashMap<>();
 
   @Autowired
-  private KurentoClient kurento;
+  private MediaPipelinePool pipelinePool;
 
-  private MediaPipeline pipeline;
-  private UserSession presenterUserSession;
+  @Autowired
+  private OutboundMessageSender messageSender;
 
   @Override
   public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
@@ -82,14 +95,16 @@ public class CallHandler extends TextWebSocketHandler {
         JsonObject candidate = jsonMessage.get("candidate").getAsJsonObject();
 
         UserSession user = null;
-        if (presenterUserSession != null) {
-          if (presenterUserSession.getSession() == session) {
-            user = presenterUserSession;
+        String channelName = sessionChannels.get(session.getId());
+        Channel channel = channelName != null ? channels.get(channelName) : null;
+        if (channel != null) {
+          if (channel.isPresenter(session.getId())) {
+            user = channel.getPresenter();
           } else {
-            user = viewers.get(session.getId());
+            user = channel.getViewer(session.getId());
           }
         }
-        if (user != null) {
+        if (user != null && user.getWebRtcEndpoint() != null) {
           IceCandidate cand =
               new IceCandidate(candidate.get("candidate").getAsString(), candidate.get("sdpMid")
                   .getAsString(), candidate.get("sdpMLineIndex").getAsInt());
@@ -97,6 +112,9 @@ public class CallHandler extends TextWebSocketHandler {
         }
         break;
       }
+      case "listChannels":
+        listChannels(session);
+        break;
       case "stop":
         stop(session);
         break;
@@ -113,15 +131,49 @@ public class CallHandler extends TextWebSocketHandler {
     response.addProperty("id", responseId);
     response.addProperty("response", "rejected");
     response.addProperty("message", throwable.getMessage());
-    session.sendMessage(new TextMessage(response.toString()));
+    messageSender.send(session, response.toString());
   }
 
-  private synchronized void presenter(final WebSocketSession session, JsonObject jsonMessage)
+  private static String getChannelName(JsonObject jsonMessage) {
+    if (jsonMessage.has("channel") && !jsonMessage.get("channel").getAsString().isEmpty()) {
+      return jsonMessage.get("channel").getAsString();
+    }
+    return DEFAULT_CHANNEL;
+  }
+
+  private void reject(WebSocketSession session, String responseId, String reason) {
+    JsonObject response = new JsonObject();
+    response.addProperty("id", responseId);
+    response.addProperty("response", "rejected");
+    response.addProperty("message", reason);
+    messageSender.send(session, response.toString());
+  }
+
+  /**
+   * Starts a broadcast in a channel. The channel name is reserved atomically, so only the
+   * presenters of the same channel compete: viewers and other channels are never blocked.
+   */
+  private void presenter(final WebSocketSession session, JsonObject jsonMessage)
       throws IOException {
-    if (presenterUserSession == null) {
-      presenterUserSession = new UserSession(session);
+    final String channelName = getChannelName(jsonMessage);
+    if (sessionChannels.putIfAbsent(session.getId(), channelName) != null) {
+      reject(session, "presenterResponse", "This session is already in a channel");
+      return;
+    }
+
+    UserSession presenterUserSession = new UserSession(session, messageSender);
+    Channel channel = new Channel(channelName, presenterUserSession);
+    if (channels.putIfAbsent(channelName, channel) != null) {
+      sessionChannels.remove(session.getId(), channelName);
+      reject(session, "presenterResponse",
+          "Another user is currently acting as sender. Try again later ...");
+      return;
+    }
+    log.info("Channel '{}' created", channelName);
 
-      pipeline = kurento.createMediaPipeline();
+    MediaPipeline pipeline = pipelinePool.borrow();
+    String sdpAnswer;
+    try {
       presenterUserSession.setWebRtcEndpoint(new WebRtcEndpoint.Builder(pipeline).build());
 
       WebRtcEndpoint presenterWebRtc = presenterUserSession.getWebRtcEndpoint();
@@ -133,123 +185,208 @@ public class CallHandler extends TextWebSocketHandler {
           JsonObject response = new JsonObject();
           response.addProperty("id", "iceCandidate");
           response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-          try {
-            synchronized (session) {
-              session.sendMessage(new TextMessage(response.toString()));
-            }
-          } catch (IOException e) {
-            log.debug(e.getMessage());
-          }
+          messageSender.send(session, response.toString());
         }
       });
 
       String sdpOffer = jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString();
-      String sdpAnswer = presenterWebRtc.processOffer(sdpOffer);
-
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "presenterResponse");
-      response.addProperty("response", "accepted");
-      response.addProperty("sdpAnswer", sdpAnswer);
+      sdpAnswer = presenterWebRtc.processOffer(sdpOffer);
+    } catch (RuntimeException e) {
+      channels.remove(channelName, channel);
+      sessionChannels.remove(session.getId(), channelName);
+      pipelinePool.giveBack(pipeline, presenterUserSession.getWebRtcEndpoint());
+      throw e;
+    }
+    channel.start(pipeline, new RelayTree(channelName, pipeline,
+        presenterUserSession.getWebRtcEndpoint(), One2ManyCallApp.RELAY_FANOUT, pipelinePool));
 
-      synchronized (session) {
-        presenterUserSession.sendMessage(response);
-      }
-      presenterWebRtc.gatherCandidates();
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "presenterResponse");
+    response.addProperty("response", "accepted");
+    response.addProperty("sdpAnswer", sdpAnswer);
 
-    } else {
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "presenterResponse");
-      response.addProperty("response", "rejected");
-      response.addProperty("message",
-          "Another user is currently acting as sender. Try again later ...");
-      session.sendMessage(new TextMessage(response.toString()));
-    }
+    presenterUserSession.sendMessage(response);
+    presenterUserSession.getWebRtcEndpoint().gatherCandidates();
   }
 
-  private synchronized void viewer(final WebSocketSession session, JsonObject jsonMessage)
+  private void viewer(final WebSocketSession session, JsonObject jsonMessage)
       throws IOException {
-    if (presenterUserSession == null || presenterUserSession.getWebRtcEndpoint() == null) {
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "viewerResponse");
-      response.addProperty("response", "rejected");
-      response.addProperty("message",
+    final String channelName = getChannelName(jsonMessage);
+    final Channel channel = channels.get(channelName);
+    if (channel == null || !channel.isLive()) {
+      reject(session, "viewerResponse",
           "No active sender now. Become sender or . Try again later ...");
-      session.sendMessage(new TextMessage(response.toString()));
-    } else {
-      if (viewers.containsKey(session.getId())) {
-        JsonObject response = new JsonObject();
-        response.addProperty("id", "viewerResponse");
-        response.addProperty("response", "rejected");
-        response.addProperty("message", "You are already viewing in this session. "
-            + "Use a different browser to add additional viewers.");
-        session.sendMessage(new TextMessage(response.toString()));
-        return;
-      }
-      UserSession viewer = new UserSession(session);
-      viewers.put(session.getId(), viewer);
+      return;
+    }
 
-      WebRtcEndpoint nextWebRtc = new WebRtcEndpoint.Builder(pipeline).build();
+    if (sessionChannels.putIfAbsent(session.getId(), channelName) != null) {
+      reject(session, "viewerResponse", "You are already viewing in this session. "
+          + "Use a different browser to add additional viewers.");
+      return;
+    }
+    UserSession viewer = new UserSession(session, messageSender);
+    channel.addViewer(session.getId(), viewer);
+    sendViewerCount(channel);
 
-      nextWebRtc.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
+    RelayTree.Leaf leaf = channel.getRelays().acquire(session.getId());
+    WebRtcEndpoint nextWebRtc = new WebRtcEndpoint.Builder(leaf.getPipeline()).build();
 
-        @Override
-        public void onEvent(IceCandidateFoundEvent event) {
-          JsonObject response = new JsonObject();
-          response.addProperty("id", "iceCandidate");
-          response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-          try {
-            synchronized (session) {
-              session.sendMessage(new TextMessage(response.toString()));
-            }
-          } catch (IOException e) {
-            log.debug(e.getMessage());
-          }
-        }
-      });
+    nextWebRtc.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
 
-      viewer.setWebRtcEndpoint(nextWebRtc);
-      presenterUserSession.getWebRtcEndpoint().connect(nextWebRtc);
-      String sdpOffer = jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString();
-      String sdpAnswer = nextWebRtc.processOffer(sdpOffer);
+      @Override
+      public void onEvent(IceCandidateFoundEvent event) {
+        JsonObject response = new JsonObject();
+        response.addProperty("id", "iceCandidate");
+        response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
+        messageSender.send(session, response.toString());
+      }
+    });
+
+    viewer.setWebRtcEndpoint(nextWebRtc);
+    leaf.getSource().connect(nextWebRtc);
+    String sdpOffer = jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString();
+    String sdpAnswer = nextWebRtc.processOffer(sdpOffer);
 
+    if (channels.get(channelName) != channel) {
+      // The presenter left while this viewer was being admitted
+      stop(session);
       JsonObject response = new JsonObject();
-      response.addProperty("id", "viewerResponse");
-      response.addProperty("response", "accepted");
-      response.addProperty("sdpAnswer", sdpAnswer);
+      response.addProperty("id", "stopCommunication");
+      viewer.sendMessage(response);
+      return;
+    }
+
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "viewerResponse");
+    response.addProperty("response", "accepted");
+    response.addProperty("sdpAnswer", sdpAnswer);
+
+    viewer.sendMessage(response);
+    nextWebRtc.gatherCandidates();
+  }
 
-      synchronized (session) {
-        viewer.sendMessage(response);
+  private void listChannels(WebSocketSession session) {
+    JsonArray channelsArray = new JsonArray();
+    for (Channel channel : channels.values()) {
+      if (channel.isLive()) {
+        JsonObject channelObject = new JsonObject();
+        channelObject.addProperty("name", channel.getName());
+        channelObject.addProperty("viewers", channel.getViewerCount());
+        channelObject.addProperty("pipelines", channel.getRelays().getLeafCount());
+        channelsArray.add(channelObject);
       }
-      nextWebRtc.gatherCandidates();
     }
+
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "channels");
+    response.add("data", channelsArray);
+    messageSender.send(session, response.toString());
   }
 
-  private synchronized void stop(WebSocketSession session) throws IOException {
+  private void sendViewerCount(Channel channel) {
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "viewerCount");
+    response.addProperty("count", channel.getViewerCount());
+    messageSender.send(channel.getPresenter().getSession(), "viewerCount", response.toString());
+  }
+
+  private void stop(WebSocketSession session) throws IOException {
     String sessionId = session.getId();
-    if (presenterUserSession != null && presenterUserSession.getSession().getId().equals(sessionId)) {
-      for (UserSession viewer : viewers.values()) {
-        JsonObject response = new JsonObject();
-        response.addProperty("id", "stopCommunication");
-        viewer.sendMessage(response);
-      }
+    String channelName = sessionChannels.remove(sessionId);
+    if (channelName == null) {
+      return;
+    }
+    Channel channel = channels.get(channelName);
+    if (channel == null) {
+      return;
+    }
+
+    if (channel.isPresenter(sessionId)) {
+      channels.remove(channelName, channel);
+      release(channel);
+    } else {
+      UserSession viewer = channel.removeViewer(sessionId);
+      if (viewer != null && viewer.getWebRtcEndpoint() != null) {
+        final WebRtcEndpoint endpoint = viewer.getWebRtcEndpoint();
+        endpoint.release(new Continuation<Void>() {
+          @Override
+          public void onSuccess(Void result) throws Exception {
+            log.trace("Released viewer endpoint {}", endpoint.getId());
+          }
 
-      log.info("Releasing media pipeline");
-      if (pipeline != null) {
-        pipeline.release();
+          @Override
+          public void onError(Throwable cause) throws Exception {
+            log.warn("Could not release viewer endpoint {}", endpoint.getId());
+          }
+        });
       }
-      pipeline = null;
-      presenterUserSession = null;
-    } else if (viewers.containsKey(sessionId)) {
-      if (viewers.get(sessionId).getWebRtcEndpoint() != null) {
-        viewers.get(sessionId).getWebRtcEndpoint().release();
+      if (channel.getRelays() != null) {
+        channel.getRelays().release(sessionId);
       }
-      viewers.remove(sessionId);
+      sendViewerCount(channel);
+    }
+  }
+
+  /**
+   * Tears down a channel whose presenter has left. The notification is serialized once and queued
+   * to every viewer without waiting for any socket, and instead of releasing the endpoint of each
+   * viewer, the pipelines of the channel are released, each one with all its elements in a single
+   * request. The teardown is logged once every pipeline has been released.
+   */
+  private void release(final Channel channel) {
+    final long start = System.currentTimeMillis();
+    final String channelName = channel.getName();
+
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "stopCommunication");
+    final String stopCommunication = response.toString();
+
+    int viewerCount = 0;
+    for (UserSession viewer : channel.getViewers()) {
+      sessionChannels.remove(viewer.getSession().getId(), channelName);
+      messageSender.send(viewer.getSession(), stopCommunication);
+      viewerCount++;
+    }
+
+    final List<MediaPipeline> pipelines = new ArrayList<>();
+    if (channel.getRelays() != null) {
+      pipelines.addAll(channel.getRelays().close());
+    }
+    if (channel.getPipeline() != null) {
+      pipelines.add(channel.getPipeline());
+    }
+    log.info("Releasing {} media pipelines of channel '{}'", pipelines.size(), channelName);
+
+    final int viewers = viewerCount;
+    final AtomicInteger pending = new AtomicInteger(pipelines.size());
+    for (final MediaPipeline pipeline : pipelines) {
+      pipelinePool.discard(pipeline, new Continuation<Void>() {
+        @Override
+        public void onSuccess(Void result) throws Exception {
+          released();
+        }
+
+        @Override
+        public void onError(Throwable cause) throws Exception {
+          log.warn("Could not release pipeline {} of channel '{}'", pipeline.getId(),
+              channelName);
+          released();
+        }
+
+        private void released() {
+          if (pending.decrementAndGet() == 0) {
+            log.info("Channel '{}' released: {} viewers, {} pipelines in {} ms", channelName,
+                viewers, pipelines.size(), System.currentTimeMillis() - start);
+          }
+        }
+      });
     }
   }
 
   @Override
   public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
     stop(session);
+    messageSender.remove(session);
   }
 
 }
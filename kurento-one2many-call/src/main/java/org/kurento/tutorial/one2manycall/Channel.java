@@ -0,0 +1,110 @@
+/*
+ * (C) Copyright 2015 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.one2manycall;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.kurento.client.MediaPipeline;
+
+/**
+ * A named broadcast: one presenter, the pipeline holding its media and the viewers watching it.
+ * The channel is reserved as soon as a presenter asks for it, and becomes live once the presenter
+ * endpoint is ready.
+ */
+public class Channel {
+
+  private final String name;
+  private final UserSession presenter;
+  private final ConcurrentMap<String, UserSession> viewers = new ConcurrentHashMap<>();
+  private volatile MediaPipeline pipeline;
+  private volatile RelayTree relays;
+
+  public Channel(String name, UserSession presenter) {
+    this.name = name;
+    this.presenter = presenter;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public UserSession getPresenter() {
+    return presenter;
+  }
+
+  public MediaPipeline getPipeline() {
+    return pipeline;
+  }
+
+  public RelayTree getRelays() {
+    return relays;
+  }
+
+  /**
+   * Makes the channel live, so viewers can be admitted.
+   *
+   * @param pipeline
+   *          the pipeline where the presenter endpoint lives
+   * @param relays
+   *          the tree of pipelines the viewers are spread on
+   */
+  public void start(MediaPipeline pipeline, RelayTree relays) {
+    this.relays = relays;
+    this.pipeline = pipeline;
+  }
+
+  public boolean isLive() {
+    return pipeline != null;
+  }
+
+  public boolean isPresenter(String sessionId) {
+    return presenter.getSession().getId().equals(sessionId);
+  }
+
+  /**
+   * Adds a viewer to the channel.
+   *
+   * @param sessionId
+   *          the session of the viewer
+   * @param viewer
+   *          the viewer
+   * @return false if the session was already viewing this channel
+   */
+  public boolean addViewer(String sessionId, UserSession viewer) {
+    return viewers.putIfAbsent(sessionId, viewer) == null;
+  }
+
+  public UserSession getViewer(String sessionId) {
+    return viewers.get(sessionId);
+  }
+
+  public UserSession removeViewer(String sessionId) {
+    return viewers.remove(sessionId);
+  }
+
+  public Collection<UserSession> getViewers() {
+    return viewers.values();
+  }
+
+  public int getViewerCount() {
+    return viewers.size();
+  }
+
+}
@@ -0,0 +1,227 @@
+/*
+ * (C) Copyright 2015 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.one2manycall;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.RtpEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tree of pipelines used to fan out the media of a presenter.
+ * <p>
+ * The root leaf is the presenter pipeline, whose source is the presenter endpoint. When every leaf
+ * is full, a new pipeline is borrowed from the pool, possibly on another media server, and fed
+ * from the least loaded leaf through a pair of {@link RtpEndpoint}s. Each leaf takes at most
+ * {@code fanout} viewers, plus the relays fed from it, so the audience is not limited by what a
+ * single pipeline can serve. With a fanout of zero or less, every viewer is attached to the root.
+ */
+public class RelayTree {
+
+  private static final Logger log = LoggerFactory.getLogger(RelayTree.class);
+
+  private final String name;
+  private final int fanout;
+  private final MediaPipelinePool pipelinePool;
+
+  private final List<Leaf> leaves = new ArrayList<>();
+  private final ConcurrentMap<String, Leaf> assignments = new ConcurrentHashMap<>();
+  private final Object growLock = new Object();
+
+  /**
+   * A pipeline of the tree, and the element carrying the presenter media into it.
+   */
+  public static class Leaf {
+    private final MediaPipeline pipeline;
+    private final MediaElement source;
+    private int load;
+
+    private Leaf(MediaPipeline pipeline, MediaElement source) {
+      this.pipeline = pipeline;
+      this.source = source;
+    }
+
+    public MediaPipeline getPipeline() {
+      return pipeline;
+    }
+
+    public MediaElement getSource() {
+      return source;
+    }
+  }
+
+  /**
+   * @param name
+   *          name of the channel, for logging
+   * @param rootPipeline
+   *          the pipeline of the presenter
+   * @param presenter
+   *          the endpoint receiving the media of the presenter
+   * @param fanout
+   *          maximum number of viewers of each leaf, or zero for no limit
+   * @param pipelinePool
+   *          pool where the pipelines of new leaves are borrowed from
+   */
+  public RelayTree(String name, MediaPipeline rootPipeline, MediaElement presenter, int fanout,
+      MediaPipelinePool pipelinePool) {
+    this.name = name;
+    this.fanout = fanout;
+    this.pipelinePool = pipelinePool;
+    this.leaves.add(new Leaf(rootPipeline, presenter));
+  }
+
+  /**
+   * Reserves a place for a viewer in the first leaf with room, growing the tree if all of them are
+   * full.
+   *
+   * @param sessionId
+   *          the session of the viewer
+   * @return the leaf where the viewer endpoint has to be created and connected to its source
+   */
+  public Leaf acquire(String sessionId) {
+    Leaf leaf = reserve();
+    if (leaf == null) {
+      // Only one thread grows the tree, the others wait and take the new leaf
+      synchronized (growLock) {
+        leaf = reserve();
+        if (leaf == null) {
+          leaf = grow();
+        }
+      }
+    }
+    assignments.put(sessionId, leaf);
+    return leaf;
+  }
+
+  /**
+   * Frees the place of a viewer.
+   *
+   * @param sessionId
+   *          the session of the viewer
+   */
+  public void release(String sessionId) {
+    Leaf leaf = assignments.remove(sessionId);
+    if (leaf != null) {
+      synchronized (this) {
+        leaf.load--;
+      }
+    }
+  }
+
+  public synchronized int getLeafCount() {
+    return leaves.size();
+  }
+
+  /**
+   * Detaches every relay of the tree, so the caller can release their pipelines together with the
+   * root one. The relay links and viewer endpoints are released with their pipelines.
+   *
+   * @return the pipelines of the relays, without the root pipeline
+   */
+  public List<MediaPipeline> close() {
+    List<MediaPipeline> relays = new ArrayList<>();
+    synchronized (this) {
+      for (Leaf leaf : leaves.subList(1, leaves.size())) {
+        relays.add(leaf.pipeline);
+      }
+      leaves.subList(1, leaves.size()).clear();
+    }
+    assignments.clear();
+    return relays;
+  }
+
+  private synchronized Leaf reserve() {
+    for (Leaf leaf : leaves) {
+      if (fanout <= 0 || leaf.load < fanout) {
+        leaf.load++;
+        return leaf;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Adds a leaf fed from the least loaded one. Called with {@code growLock} held, when every leaf
+   * is full, so the parent goes one over {@code fanout} to take the relay.
+   */
+  private Leaf grow() {
+    Leaf parent;
+    synchronized (this) {
+      parent = leaves.get(0);
+      for (Leaf leaf : leaves) {
+        if (leaf.load < parent.load) {
+          parent = leaf;
+        }
+      }
+      parent.load++;
+    }
+
+    MediaPipeline pipeline = pipelinePool.borrow();
+    RtpEndpoint uplink = null;
+    RtpEndpoint parentLink = null;
+    try {
+      uplink = new RtpEndpoint.Builder(pipeline).build();
+      parentLink = new RtpEndpoint.Builder(parent.pipeline).build();
+      parent.source.connect(parentLink);
+
+      String offer = uplink.generateOffer();
+      String answer = parentLink.processOffer(offer);
+      uplink.processAnswer(answer);
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        parent.load--;
+      }
+      if (parentLink != null) {
+        release(parentLink);
+      }
+      pipelinePool.giveBack(pipeline, uplink);
+      throw e;
+    }
+
+    Leaf leaf = new Leaf(pipeline, uplink);
+    synchronized (this) {
+      leaf.load++;
+      leaves.add(leaf);
+      log.info("Channel '{}': added relay {}, {} leaves", name, leaves.size() - 1,
+          leaves.size());
+    }
+    return leaf;
+  }
+
+  private void release(final MediaElement element) {
+    element.release(new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.trace("Channel '{}': released relay element {}", name, element.getId());
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("Channel '{}': could not release relay element {}", name, element.getId());
+      }
+    });
+  }
+
+}
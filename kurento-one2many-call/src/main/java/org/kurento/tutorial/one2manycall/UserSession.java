@@ -23,7 +23,6 @@ import org.kurento.client.IceCandidate;
 import org.kurento.client.WebRtcEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
 import com.google.gson.JsonObject;
@@ -39,10 +38,12 @@ public class UserSession {
   private static final Logger log = LoggerFactory.getLogger(UserSession.class);
 
   private final WebSocketSession session;
-  private WebRtcEndpoint webRtcEndpoint;
+  private final OutboundMessageSender messageSender;
+  private volatile WebRtcEndpoint webRtcEndpoint;
 
-  public UserSession(WebSocketSession session) {
+  public UserSession(WebSocketSession session, OutboundMessageSender messageSender) {
     this.session = session;
+    this.messageSender = messageSender;
   }
 
   public WebSocketSession getSession() {
@@ -51,7 +52,7 @@ public class UserSession {
 
   public void sendMessage(JsonObject message) throws IOException {
     log.debug("Sending message from user with session Id '{}': {}", session.getId(), message);
-    session.sendMessage(new TextMessage(message.toString()));
+    messageSender.send(session, message.toString());
   }
 
   public WebRtcEndpoint getWebRtcEndpoint() {
@@ -49,6 +49,12 @@ ws.onmessage = function(message) {
 	case 'stopCommunication':
 		dispose();
 		break;
+	case 'viewerCount':
+		console.info('Viewers in this channel: ' + parsedMessage.count);
+		break;
+	case 'channels':
+		onChannels(parsedMessage);
+		break;
 	default:
 		console.error('Unrecognized message', parsedMessage);
 	}
@@ -106,6 +112,7 @@ function onOfferPresenter(error, offerSdp) {
 	console.info('Invoking SDP offer callback function ' + location.host);
 	var message = {
 		id : 'presenter',
+		channel : getChannel(),
 		sdpOffer : offerSdp
 	}
 	sendMessage(message);
@@ -137,11 +144,31 @@ function onOfferViewer(error, offerSdp) {
 	console.info('Invoking SDP offer callback function ' + location.host);
 	var message = {
 		id : 'viewer',
+		channel : getChannel(),
 		sdpOffer : offerSdp
 	}
 	sendMessage(message);
 }
 
+function getChannel() {
+	return document.getElementById('channel').value;
+}
+
+function listChannels() {
+	sendMessage({
+		id : 'listChannels'
+	});
+}
+
+function onChannels(message) {
+	if (message.data.length == 0) {
+		console.info('No live channels');
+	}
+	message.data.forEach(function(channel) {
+		console.info('Channel ' + channel.name + ': ' + channel.viewers + ' viewers');
+	});
+}
+
 function onIceCandidate(candidate) {
 	console.log("Local candidate" + JSON.stringify(candidate));
 
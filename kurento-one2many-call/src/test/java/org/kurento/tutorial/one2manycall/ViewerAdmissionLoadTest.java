@@ -0,0 +1,248 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.one2manycall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.kurento.jsonrpc.DefaultJsonRpcHandler;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.client.JsonRpcClientLocal;
+import org.kurento.jsonrpc.message.Request;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+/**
+ * Admits bursts of viewers to a broadcast at once, against a stubbed media server that answers
+ * every request after a fixed latency, and logs the admission rate for each burst size. As viewers
+ * are admitted concurrently, the rate grows with the size of the burst instead of staying at the
+ * rate of a single viewer.
+ */
+public class ViewerAdmissionLoadTest {
+
+  private static final Logger log = LoggerFactory.getLogger(ViewerAdmissionLoadTest.class);
+  private static final Gson gson = new GsonBuilder().create();
+
+  private static final int[] BURSTS = { 1, 10, 50, 100, 250, 500 };
+  // Threads of the web container handling the messages
+  private static final int REQUEST_THREADS = 200;
+  private static final long MEDIA_SERVER_LATENCY = 2;
+
+  /**
+   * Media server answering every request after a fixed latency, without any media.
+   */
+  private static class StubMediaServer extends DefaultJsonRpcHandler<JsonObject> {
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Override
+    public void handleRequest(Transaction transaction, Request<JsonObject> request)
+        throws Exception {
+      requests.incrementAndGet();
+      Thread.sleep(MEDIA_SERVER_LATENCY);
+
+      JsonObject params = request.getParams();
+      JsonObject result = new JsonObject();
+      switch (request.getMethod()) {
+        case "create": {
+          String type = params.get("type").getAsString();
+          JsonObject constructorParams = params.getAsJsonObject("constructorParams");
+          String prefix = constructorParams != null && constructorParams.has("mediaPipeline")
+              ? constructorParams.get("mediaPipeline").getAsString() + "/" : "";
+          result.addProperty("value", prefix + UUID.randomUUID() + "_kurento." + type);
+          break;
+        }
+        case "invoke":
+          if ("processOffer".equals(params.get("operation").getAsString())) {
+            result.addProperty("value", "sdp-answer");
+          }
+          break;
+        case "subscribe":
+          result.addProperty("value", UUID.randomUUID().toString());
+          break;
+        default:
+          break;
+      }
+      result.addProperty("sessionId", "stub");
+      transaction.sendResponse(result);
+    }
+  }
+
+  private final StubMediaServer mediaServer = new StubMediaServer();
+  // Messages sent to each session, by session id
+  private final ConcurrentMap<String, List<JsonObject>> sent = new ConcurrentHashMap<>();
+  private final AtomicInteger sessionIds = new AtomicInteger();
+
+  private KurentoClient kurento;
+  private CallHandler handler;
+  private ExecutorService requestThreads;
+
+  @Before
+  public void setUp() throws Exception {
+    kurento = KurentoClient.createFromJsonRpcClient(new JsonRpcClientLocal(mediaServer));
+
+    MediaPipelinePool pipelinePool = mock(MediaPipelinePool.class, withSettings().stubOnly());
+    when(pipelinePool.borrow()).thenAnswer(new Answer<MediaPipeline>() {
+      @Override
+      public MediaPipeline answer(InvocationOnMock invocation) throws Throwable {
+        return kurento.createMediaPipeline();
+      }
+    });
+
+    OutboundMessageSender messageSender = mock(OutboundMessageSender.class,
+        withSettings().stubOnly());
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        WebSocketSession session = invocation.getArgument(0);
+        String message = invocation.getArgument(1);
+        sent.get(session.getId()).add(gson.fromJson(message, JsonObject.class));
+        return null;
+      }
+    }).when(messageSender).send(any(WebSocketSession.class), anyString());
+
+    handler = new CallHandler();
+    ReflectionTestUtils.setField(handler, "pipelinePool", pipelinePool);
+    ReflectionTestUtils.setField(handler, "messageSender", messageSender);
+    requestThreads = Executors.newFixedThreadPool(REQUEST_THREADS);
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    requestThreads.shutdownNow();
+    requestThreads.awaitTermination(10, TimeUnit.SECONDS);
+    kurento.destroy();
+  }
+
+  @Test
+  public void admissionRateGrowsWithBurstSize() throws Exception {
+    WebSocketSession presenter = newSession();
+    handle(presenter, "presenter");
+    assertEquals("accepted", lastResponse(presenter, "presenterResponse"));
+
+    double single = 0;
+    double largest = 0;
+    for (int burst : BURSTS) {
+      int requestsBefore = mediaServer.requests.get();
+      double rate = admit(burst);
+      log.info("Burst of {} viewers: {} viewers/s, {} media server requests per viewer", burst,
+          Math.round(rate), (mediaServer.requests.get() - requestsBefore) / burst);
+      if (burst == 1) {
+        single = rate;
+      }
+      largest = rate;
+    }
+
+    assertTrue("Viewers are not admitted concurrently: " + single + " vs " + largest,
+        largest > single * 4);
+  }
+
+  // Admits a burst of viewers at once, and then stops them
+  private double admit(int burst) throws Exception {
+    final List<WebSocketSession> viewers = new ArrayList<>();
+    for (int i = 0; i < burst; i++) {
+      viewers.add(newSession());
+    }
+
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> admissions = new ArrayList<>();
+    for (final WebSocketSession viewer : viewers) {
+      admissions.add(requestThreads.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          start.await();
+          handle(viewer, "viewer");
+          return null;
+        }
+      }));
+    }
+
+    long begin = System.nanoTime();
+    start.countDown();
+    for (Future<?> admission : admissions) {
+      admission.get(60, TimeUnit.SECONDS);
+    }
+    long elapsed = System.nanoTime() - begin;
+
+    for (WebSocketSession viewer : viewers) {
+      assertEquals("accepted", lastResponse(viewer, "viewerResponse"));
+      handle(viewer, "stop");
+    }
+    return burst * 1e9 / elapsed;
+  }
+
+  private WebSocketSession newSession() {
+    WebSocketSession session = mock(WebSocketSession.class, withSettings().stubOnly());
+    String id = Integer.toString(sessionIds.incrementAndGet());
+    when(session.getId()).thenReturn(id);
+    when(session.isOpen()).thenReturn(true);
+    sent.put(id, new CopyOnWriteArrayList<JsonObject>());
+    return session;
+  }
+
+  private void handle(WebSocketSession session, String id) throws Exception {
+    JsonObject message = new JsonObject();
+    message.addProperty("id", id);
+    message.addProperty("sdpOffer", "sdp-offer");
+    handler.handleTextMessage(session, new TextMessage(message.toString()));
+  }
+
+  private String lastResponse(WebSocketSession session, String id) {
+    String response = null;
+    for (JsonObject message : sent.get(session.getId())) {
+      if (id.equals(message.get("id").getAsString())) {
+        response = message.get("response").getAsString();
+      }
+    }
+    return response;
+  }
+
+}
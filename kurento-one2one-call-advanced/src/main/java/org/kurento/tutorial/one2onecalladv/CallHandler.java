@@ -56,9 +56,15 @@ public class CallHandler extends TextWebSocketHandler {
   @Autowired
   private KurentoClient kurento;
 
+  @Autowired
+  private AssetCache assets;
+
   @Autowired
   private UserRegistry registry;
 
+  @Autowired
+  private RecordingStorage storage;
+
   @Override
   public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
     JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
@@ -113,10 +119,8 @@ public class CallHandler extends TextWebSocketHandler {
     String responseMsg = "accepted";
     if (name.isEmpty()) {
       responseMsg = "rejected: empty user name";
-    } else if (registry.exists(name)) {
+    } else if (!registry.register(caller)) {
       responseMsg = "rejected: user '" + name + "' already registered";
-    } else {
-      registry.register(caller);
     }
 
     JsonObject response = new JsonObject();
@@ -130,7 +134,14 @@ public class CallHandler extends TextWebSocketHandler {
     String from = jsonMessage.get("from").getAsString();
     JsonObject response = new JsonObject();
 
-    if (registry.exists(to)) {
+    if (!storage.hasRoom(from) || !storage.hasRoom(to)) {
+      // The call would be recorded with no room left
+      response.addProperty("id", "callResponse");
+      response.addProperty("response", "rejected");
+      response.addProperty("message", "recording storage quota reached");
+
+      caller.sendMessage(response);
+    } else if (registry.exists(to)) {
       caller.setSdpOffer(jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString());
       caller.setCallingTo(to);
 
@@ -159,7 +170,7 @@ public class CallHandler extends TextWebSocketHandler {
     if ("accept".equals(callResponse)) {
       log.debug("Accepted call from '{}' to '{}'", from, to);
 
-      CallMediaPipeline callMediaPipeline = new CallMediaPipeline(kurento, from, to);
+      CallMediaPipeline callMediaPipeline = new CallMediaPipeline(kurento, assets, from, to);
       pipelines.put(calleer.getSessionId(), callMediaPipeline.getPipeline());
       pipelines.put(callee.getSessionId(), callMediaPipeline.getPipeline());
 
@@ -228,6 +239,8 @@ public class CallHandler extends TextWebSocketHandler {
 
       callMediaPipeline.getCallerWebRtcEp().gatherCandidates();
 
+      storage.add(from, CallMediaPipeline.getRecordingUrl(from));
+      storage.add(to, CallMediaPipeline.getRecordingUrl(to));
       callMediaPipeline.record();
 
     } else {
@@ -248,6 +261,11 @@ public class CallHandler extends TextWebSocketHandler {
               : stopperUser.getCallingTo() != null ? registry.getByName(stopperUser.getCallingTo())
                   : null;
 
+              storage.finish(CallMediaPipeline.getRecordingUrl(stopperUser.getName()));
+              if (stoppedUser != null) {
+                storage.finish(CallMediaPipeline.getRecordingUrl(stoppedUser.getName()));
+              }
+
               if (stoppedUser != null) {
                 JsonObject message = new JsonObject();
                 message.addProperty("id", "stopCommunication");
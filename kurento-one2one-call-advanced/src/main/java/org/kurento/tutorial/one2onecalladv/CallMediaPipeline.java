@@ -18,6 +18,7 @@ package org.kurento.tutorial.one2onecalladv;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.regex.Pattern;
 
 import org.kurento.client.FaceOverlayFilter;
 import org.kurento.client.KurentoClient;
@@ -35,8 +36,12 @@ import org.kurento.client.WebRtcEndpoint;
 public class CallMediaPipeline {
 
   private static final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-S");
-  public static final String RECORDING_PATH = "file:///tmp/" + df.format(new Date()) + "-";
+  public static final String RECORDING_DIR = "file:///tmp/";
+  public static final String RECORDING_PATH = RECORDING_DIR + df.format(new Date()) + "-";
   public static final String RECORDING_EXT = ".webm";
+  // <start time of the application>-<user>.webm, the user being the owner of the file
+  public static final Pattern RECORDING_NAME_PATTERN =
+      Pattern.compile("\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2}-\\d{1,3}-(.+)\\.webm");
 
   private final MediaPipeline pipeline;
   private final WebRtcEndpoint webRtcCaller;
@@ -44,7 +49,7 @@ public class CallMediaPipeline {
   private final RecorderEndpoint recorderCaller;
   private final RecorderEndpoint recorderCallee;
 
-  public CallMediaPipeline(KurentoClient kurento, String from, String to) {
+  public CallMediaPipeline(KurentoClient kurento, AssetCache assets, String from, String to) {
 
     // Media pipeline
     pipeline = kurento.createMediaPipeline();
@@ -53,20 +58,15 @@ public class CallMediaPipeline {
     webRtcCaller = new WebRtcEndpoint.Builder(pipeline).build();
     webRtcCallee = new WebRtcEndpoint.Builder(pipeline).build();
 
-    recorderCaller = new RecorderEndpoint.Builder(pipeline, RECORDING_PATH + from + RECORDING_EXT)
-        .build();
-    recorderCallee = new RecorderEndpoint.Builder(pipeline, RECORDING_PATH + to + RECORDING_EXT)
-        .build();
+    recorderCaller = new RecorderEndpoint.Builder(pipeline, getRecordingUrl(from)).build();
+    recorderCallee = new RecorderEndpoint.Builder(pipeline, getRecordingUrl(to)).build();
 
-    // String appServerUrl = System.getProperty("app.server.url",
-    //    One2OneCallAdvApp.DEFAULT_APP_SERVER_URL);
-    String appServerUrl = "http://files.openvidu.io";
     FaceOverlayFilter faceOverlayFilterCaller = new FaceOverlayFilter.Builder(pipeline).build();
-    faceOverlayFilterCaller.setOverlayedImage(appServerUrl + "/img/mario-wings.png", -0.35F, -1.2F,
+    faceOverlayFilterCaller.setOverlayedImage(assets.getUrl("mario-wings.png"), -0.35F, -1.2F,
         1.6F, 1.6F);
 
     FaceOverlayFilter faceOverlayFilterCallee = new FaceOverlayFilter.Builder(pipeline).build();
-    faceOverlayFilterCallee.setOverlayedImage(appServerUrl + "/img/Hat.png", -0.2F, -1.35F, 1.5F,
+    faceOverlayFilterCallee.setOverlayedImage(assets.getUrl("Hat.png"), -0.2F, -1.35F, 1.5F,
         1.5F);
 
     // Connections
@@ -79,6 +79,10 @@ public class CallMediaPipeline {
     faceOverlayFilterCallee.connect(recorderCallee);
   }
 
+  public static String getRecordingUrl(String user) {
+    return RECORDING_PATH + user + RECORDING_EXT;
+  }
+
   public void record() {
     recorderCaller.record();
     recorderCallee.record();
@@ -17,6 +17,10 @@
 
 package org.kurento.tutorial.one2onecalladv;
 
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Paths;
+
 import org.kurento.client.KurentoClient;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
@@ -38,6 +42,19 @@ public class One2OneCallAdvApp implements WebSocketConfigurer {
 
   static final String DEFAULT_APP_SERVER_URL = "https://localhost:8443";
 
+  static final String DEFAULT_ASSET_ORIGIN_URL = "http://files.openvidu.io/img";
+
+  static final long DEFAULT_STORAGE_GLOBAL_QUOTA = 10L * 1024 * 1024 * 1024;
+
+  static final long DEFAULT_STORAGE_USER_QUOTA = 1024L * 1024 * 1024;
+
+  // Zero keeps the recordings until they are deleted by hand
+  static final long DEFAULT_STORAGE_MAX_AGE = 0;
+
+  static final long DEFAULT_STORAGE_MAX_SIZE = 0;
+
+  static final long DEFAULT_STORAGE_SWEEP_INTERVAL = 60000;
+
   @Bean
   public CallHandler callHandler() {
     return new CallHandler();
@@ -48,6 +65,24 @@ public class One2OneCallAdvApp implements WebSocketConfigurer {
     return new UserRegistry();
   }
 
+  @Bean
+  public AssetCache assetCache() {
+    return new AssetCache(System.getProperty("app.server.url"),
+        System.getProperty("assets.originUrl", DEFAULT_ASSET_ORIGIN_URL), "mario-wings.png",
+        "Hat.png");
+  }
+
+  @Bean
+  public RecordingStorage recordingStorage() throws IOException {
+    return new RecordingStorage(Paths.get(URI.create(CallMediaPipeline.RECORDING_DIR)),
+        CallMediaPipeline.RECORDING_NAME_PATTERN,
+        Long.getLong("storage.globalQuota", DEFAULT_STORAGE_GLOBAL_QUOTA),
+        Long.getLong("storage.userQuota", DEFAULT_STORAGE_USER_QUOTA),
+        Long.getLong("storage.maxAge", DEFAULT_STORAGE_MAX_AGE),
+        Long.getLong("storage.maxSize", DEFAULT_STORAGE_MAX_SIZE),
+        Long.getLong("storage.sweepInterval", DEFAULT_STORAGE_SWEEP_INTERVAL));
+  }
+
   @Bean
   public KurentoClient kurentoClient() {
     return KurentoClient.create();
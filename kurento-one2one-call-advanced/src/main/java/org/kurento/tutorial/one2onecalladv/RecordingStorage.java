@@ -0,0 +1,352 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.one2onecalladv;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the space used by the recordings of a directory, enforcing quotas before new
+ * recordings start and deleting old ones in the background.
+ * <p>
+ * Only the files whose name matches {@code namePattern} are taken into account, and never any
+ * other file of the directory. The first group of the pattern, if any, is the owner of the file.
+ * The directory is scanned once, when the storage is created; afterwards, recorders report the
+ * files they start and finish, and each pass of the sweeper only reads the size of the files still
+ * being written. The sweeper runs at the lowest thread priority and deletes the finished files
+ * older than {@code maxAge}, then the oldest ones until the total is below {@code maxSize}.
+ * <p>
+ * A zero quota, age or size means no limit.
+ */
+public class RecordingStorage {
+
+  private static final Logger log = LoggerFactory.getLogger(RecordingStorage.class);
+
+  /**
+   * Receives the recordings deleted by the sweeper.
+   */
+  public interface Listener {
+    void onDeleted(String url);
+  }
+
+  private static final Comparator<StoredFile> OLDEST_FIRST = new Comparator<StoredFile>() {
+    @Override
+    public int compare(StoredFile f1, StoredFile f2) {
+      return Long.compare(f1.modified, f2.modified);
+    }
+  };
+
+  private static class StoredFile {
+    private final Path path;
+    private final String url;
+    private final String owner;
+    private long size;
+    private long modified;
+    private boolean writing;
+    // Finished since the last pass, its last bytes may not have been flushed then
+    private boolean settling;
+
+    private StoredFile(Path path, String url, String owner) {
+      this.path = path;
+      this.url = url;
+      this.owner = owner;
+    }
+  }
+
+  private final Path directory;
+  private final Pattern namePattern;
+  private final long globalQuota;
+  private final long userQuota;
+  private final long maxAge;
+  private final long maxSize;
+  private final ScheduledExecutorService sweeper;
+
+  private final Map<Path, StoredFile> files = new HashMap<>();
+  private final Map<String, Long> usageByOwner = new HashMap<>();
+  private long usage;
+  private volatile Listener listener;
+
+  /**
+   * @param directory
+   *          the directory of the recordings
+   * @param namePattern
+   *          pattern of the names of the recordings
+   * @param globalQuota
+   *          bytes all the recordings can take before new ones are refused
+   * @param userQuota
+   *          bytes the recordings of an owner can take before new ones are refused
+   * @param maxAge
+   *          time in ms after which a finished recording is deleted
+   * @param maxSize
+   *          bytes kept by the sweeper, deleting the oldest recordings
+   * @param sweepInterval
+   *          time in ms between passes of the sweeper
+   */
+  public RecordingStorage(Path directory, Pattern namePattern, long globalQuota, long userQuota,
+      long maxAge, long maxSize, long sweepInterval) throws IOException {
+    this.directory = directory;
+    this.namePattern = namePattern;
+    this.globalQuota = globalQuota;
+    this.userQuota = userQuota;
+    this.maxAge = maxAge;
+    this.maxSize = maxSize;
+
+    Files.createDirectories(directory);
+    scan();
+
+    sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "recording-sweeper");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+    sweeper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sweep();
+        } catch (RuntimeException e) {
+          log.warn("Recording sweep of {} failed", RecordingStorage.this.directory, e);
+        }
+      }
+    }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+  }
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * @param owner
+   *          the owner of the new recording, or null to check only the global quota
+   * @return true if neither the owner nor the whole storage have reached their quota
+   */
+  public synchronized boolean hasRoom(String owner) {
+    return (globalQuota <= 0 || usage < globalQuota)
+        && (userQuota <= 0 || owner == null || getUsage(owner) < userQuota);
+  }
+
+  /**
+   * Starts accounting a recording a recorder is about to write. Recordings outside the directory
+   * or not matching the name pattern are ignored.
+   */
+  public synchronized void add(String owner, String url) {
+    Path path = toPath(url);
+    if (path == null) {
+      return;
+    }
+    StoredFile file = files.get(path);
+    if (file == null) {
+      file = new StoredFile(path, url, owner);
+      files.put(path, file);
+    }
+    file.writing = true;
+    file.modified = System.currentTimeMillis();
+  }
+
+  /**
+   * Takes the final size of a recording that is no longer being written.
+   */
+  public void finish(String url) {
+    Path path = toPath(url);
+    if (path == null) {
+      return;
+    }
+    long size = sizeOf(path);
+    synchronized (this) {
+      StoredFile file = files.get(path);
+      if (file != null) {
+        resize(file, size);
+        file.writing = false;
+        file.settling = true;
+        file.modified = System.currentTimeMillis();
+      }
+    }
+  }
+
+  public synchronized long getUsage() {
+    return usage;
+  }
+
+  public synchronized long getUsage(String owner) {
+    Long ownerUsage = usageByOwner.get(owner);
+    return ownerUsage == null ? 0 : ownerUsage;
+  }
+
+  @PreDestroy
+  public void close() {
+    sweeper.shutdownNow();
+  }
+
+  private void scan() throws IOException {
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (Path path : stream) {
+        Matcher matcher = namePattern.matcher(path.getFileName().toString());
+        if (!matcher.matches() || !Files.isRegularFile(path)) {
+          continue;
+        }
+        String owner = matcher.groupCount() > 0 ? matcher.group(1) : null;
+        StoredFile file = new StoredFile(path, path.toUri().toString(), owner);
+        file.modified = Files.getLastModifiedTime(path).toMillis();
+        files.put(path, file);
+        resize(file, Files.size(path));
+      }
+    }
+    log.info("Recording storage {}: {} recordings, {} bytes", directory, files.size(), usage);
+  }
+
+  private void sweep() {
+    // Only the files being written can have changed since the last pass
+    List<StoredFile> writing = new ArrayList<>();
+    synchronized (this) {
+      for (StoredFile file : files.values()) {
+        if (file.writing || file.settling) {
+          file.settling = false;
+          writing.add(file);
+        }
+      }
+    }
+    for (StoredFile file : writing) {
+      long size = sizeOf(file.path);
+      synchronized (this) {
+        if (files.get(file.path) == file) {
+          resize(file, size);
+        }
+      }
+    }
+
+    if (maxAge <= 0 && maxSize <= 0) {
+      return;
+    }
+
+    List<StoredFile> expired = new ArrayList<>();
+    synchronized (this) {
+      List<StoredFile> finished = new ArrayList<>();
+      for (StoredFile file : files.values()) {
+        if (!file.writing) {
+          finished.add(file);
+        }
+      }
+      Collections.sort(finished, OLDEST_FIRST);
+
+      long now = System.currentTimeMillis();
+      long remaining = usage;
+      for (StoredFile file : finished) {
+        boolean tooOld = maxAge > 0 && now - file.modified > maxAge;
+        boolean tooBig = maxSize > 0 && remaining > maxSize;
+        if (!tooOld && !tooBig) {
+          // The rest of the files are newer
+          break;
+        }
+        expired.add(file);
+        remaining -= file.size;
+      }
+    }
+
+    for (StoredFile file : expired) {
+      delete(file);
+    }
+    if (!expired.isEmpty()) {
+      log.info("Recording storage {}: deleted {} recordings, {} bytes left", directory,
+          expired.size(), getUsage());
+    }
+  }
+
+  private void delete(StoredFile file) {
+    synchronized (this) {
+      if (files.get(file.path) != file || file.writing) {
+        // Being written again
+        return;
+      }
+    }
+    try {
+      Files.deleteIfExists(file.path);
+    } catch (IOException e) {
+      log.warn("Could not delete recording {}: {}", file.path, e.getMessage());
+      return;
+    }
+    synchronized (this) {
+      resize(file, 0);
+      files.remove(file.path);
+    }
+
+    Listener current = listener;
+    if (current != null) {
+      current.onDeleted(file.url);
+    }
+  }
+
+  private void resize(StoredFile file, long size) {
+    long delta = size - file.size;
+    file.size = size;
+    usage += delta;
+    if (file.owner != null) {
+      long ownerUsage = getUsage(file.owner) + delta;
+      if (ownerUsage > 0) {
+        usageByOwner.put(file.owner, ownerUsage);
+      } else {
+        usageByOwner.remove(file.owner);
+      }
+    }
+  }
+
+  private Path toPath(String url) {
+    if (!url.startsWith("file:")) {
+      return null;
+    }
+    Path path = Paths.get(URI.create(url));
+    if (!directory.equals(path.getParent())
+        || !namePattern.matcher(path.getFileName().toString()).matches()) {
+      return null;
+    }
+    return path;
+  }
+
+  private static long sizeOf(Path path) {
+    try {
+      return Files.exists(path) ? Files.size(path) : 0;
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+}
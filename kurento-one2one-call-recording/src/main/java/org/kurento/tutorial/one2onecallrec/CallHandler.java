@@ -18,7 +18,17 @@
 package org.kurento.tutorial.one2onecallrec;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
 
 import org.kurento.client.EndOfStreamEvent;
 import org.kurento.client.EventListener;
@@ -37,6 +47,7 @@ import org.springframework.web.socket.handler.TextWebSocketHandler;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
 /**
@@ -53,12 +64,37 @@ public class CallHandler extends TextWebSocketHandler {
 
   private final ConcurrentHashMap<String, MediaPipeline> pipelines = new ConcurrentHashMap<>();
 
+  // Id of the call being recorded, by session id of both of its users
+  private final ConcurrentHashMap<String, String> callIds = new ConcurrentHashMap<>();
+
+  private final ConcurrentHashMap<String, CallMediaPipeline> recordingCalls =
+      new ConcurrentHashMap<>();
+
+  // Checks the segment limits of the recordings and switches their segments
+  private final ScheduledExecutorService segmentScheduler = Executors.newScheduledThreadPool(1,
+      new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "recording-segments-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
   @Autowired
   private KurentoClient kurento;
 
   @Autowired
   private UserRegistry registry;
 
+  @Autowired
+  private RecordingCatalog catalog;
+
+  @Autowired
+  private RecordingStorage storage;
+
   @Override
   public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
     JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
@@ -83,6 +119,9 @@ public class CallHandler extends TextWebSocketHandler {
       case "play":
         play(user, jsonMessage);
         break;
+      case "recordings":
+        recordings(session, jsonMessage);
+        break;
       case "onIceCandidate": {
         JsonObject candidate = jsonMessage.get("candidate").getAsJsonObject();
 
@@ -113,10 +152,8 @@ public class CallHandler extends TextWebSocketHandler {
     String responseMsg = "accepted";
     if (name.isEmpty()) {
       responseMsg = "rejected: empty user name";
-    } else if (registry.exists(name)) {
+    } else if (!registry.register(caller)) {
       responseMsg = "rejected: user '" + name + "' already registered";
-    } else {
-      registry.register(caller);
     }
 
     JsonObject response = new JsonObject();
@@ -130,7 +167,14 @@ public class CallHandler extends TextWebSocketHandler {
     String from = jsonMessage.get("from").getAsString();
     JsonObject response = new JsonObject();
 
-    if (registry.exists(to)) {
+    if (!storage.hasRoom(from) || !storage.hasRoom(to)) {
+      // The call would be recorded with no room left
+      response.addProperty("id", "callResponse");
+      response.addProperty("response", "rejected");
+      response.addProperty("message", "recording storage quota reached");
+
+      caller.sendMessage(response);
+    } else if (registry.exists(to)) {
       caller.setSdpOffer(jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString());
       caller.setCallingTo(to);
 
@@ -159,7 +203,9 @@ public class CallHandler extends TextWebSocketHandler {
     if ("accept".equals(callResponse)) {
       log.debug("Accepted call from '{}' to '{}'", from, to);
 
-      CallMediaPipeline callMediaPipeline = new CallMediaPipeline(kurento, from, to);
+      String callId = UUID.randomUUID().toString();
+      CallMediaPipeline callMediaPipeline =
+          new CallMediaPipeline(kurento, catalog, storage, segmentScheduler, callId, from, to);
       pipelines.put(calleer.getSessionId(), callMediaPipeline.getPipeline());
       pipelines.put(callee.getSessionId(), callMediaPipeline.getPipeline());
 
@@ -229,6 +275,9 @@ public class CallHandler extends TextWebSocketHandler {
       callMediaPipeline.getCallerWebRtcEp().gatherCandidates();
 
       callMediaPipeline.record();
+      recordingCalls.put(callId, callMediaPipeline);
+      callIds.put(calleer.getSessionId(), callId);
+      callIds.put(callee.getSessionId(), callId);
 
     } else {
       JsonObject response = new JsonObject();
@@ -241,6 +290,17 @@ public class CallHandler extends TextWebSocketHandler {
   public void stop(WebSocketSession session) throws IOException {
     // Both users can stop the communication. A 'stopCommunication'
     // message will be sent to the other peer.
+    String callId = callIds.remove(session.getId());
+    if (callId != null) {
+      CallMediaPipeline recording = recordingCalls.remove(callId);
+      if (recording != null) {
+        // The pipeline is released when the recorders have stopped, not with the sessions, so the
+        // last segments are complete when they are marked as finished
+        pipelines.values().removeAll(Collections.singleton(recording.getPipeline()));
+        recording.stopAndRelease();
+      }
+    }
+
     UserSession stopperUser = registry.getBySession(session);
     if (stopperUser != null) {
       UserSession stoppedUser =
@@ -249,6 +309,9 @@ public class CallHandler extends TextWebSocketHandler {
                   : null;
 
               if (stoppedUser != null) {
+                if (callId != null) {
+                  callIds.remove(stoppedUser.getSessionId(), callId);
+                }
                 JsonObject message = new JsonObject();
                 message.addProperty("id", "stopCommunication");
                 stoppedUser.sendMessage(message);
@@ -283,13 +346,19 @@ public class CallHandler extends TextWebSocketHandler {
     JsonObject response = new JsonObject();
     response.addProperty("id", "playResponse");
 
-    if (registry.getByName(user) != null && registry.getBySession(session.getSession()) != null) {
-      final PlayMediaPipeline playMediaPipeline =
-          new PlayMediaPipeline(kurento, user, session.getSession());
+    RecordingCatalog.Recording latest = catalog.getLatest(user);
+    if (latest != null && registry.getBySession(session.getSession()) != null) {
+      // A call is recorded in one or more segments, which are played one after the other
+      List<String> urls = new ArrayList<>();
+      for (RecordingCatalog.Recording segment : catalog.getSegments(latest.getCallId(), user)) {
+        urls.add(segment.getUrl());
+      }
+      final PlayMediaPipeline playMediaPipeline = new PlayMediaPipeline(kurento, urls,
+          session.getSession());
 
       session.setPlayingWebRtcEndpoint(playMediaPipeline.getWebRtc());
 
-      playMediaPipeline.getPlayer().addEndOfStreamListener(new EventListener<EndOfStreamEvent>() {
+      playMediaPipeline.setEndOfPlayListener(new EventListener<EndOfStreamEvent>() {
         @Override
         public void onEvent(EndOfStreamEvent event) {
           UserSession user = registry.getBySession(session.getSession());
@@ -339,6 +408,52 @@ public class CallHandler extends TextWebSocketHandler {
     }
   }
 
+  private void recordings(WebSocketSession session, JsonObject jsonMessage) throws IOException {
+    RecordingCatalog.Query query = new RecordingCatalog.Query();
+    if (jsonMessage.has("user")) {
+      query.user(jsonMessage.get("user").getAsString());
+    }
+    if (jsonMessage.has("callId")) {
+      query.callId(jsonMessage.get("callId").getAsString());
+    }
+    if (jsonMessage.has("profile")) {
+      query.profile(jsonMessage.get("profile").getAsString());
+    }
+    if (jsonMessage.has("from") || jsonMessage.has("to")) {
+      query.startedBetween(
+          jsonMessage.has("from") ? jsonMessage.get("from").getAsLong() : Long.MIN_VALUE,
+          jsonMessage.has("to") ? jsonMessage.get("to").getAsLong() : Long.MAX_VALUE);
+    }
+    if (jsonMessage.has("minDuration") || jsonMessage.has("maxDuration")) {
+      query.durationBetween(
+          jsonMessage.has("minDuration") ? jsonMessage.get("minDuration").getAsLong() : 0,
+          jsonMessage.has("maxDuration") ? jsonMessage.get("maxDuration").getAsLong()
+              : Long.MAX_VALUE);
+    }
+    query.page(jsonMessage.has("offset") ? jsonMessage.get("offset").getAsInt() : 0,
+        jsonMessage.has("limit") ? jsonMessage.get("limit").getAsInt() : 20);
+
+    RecordingCatalog.Page page = catalog.find(query);
+    JsonArray recordings = new JsonArray();
+    for (RecordingCatalog.Recording recording : page.getRecordings()) {
+      recordings.add(recording.toJson());
+    }
+
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "recordingsResponse");
+    response.add("recordings", recordings);
+    response.addProperty("offset", page.getOffset());
+    response.addProperty("more", page.hasMore());
+    synchronized (session) {
+      session.sendMessage(new TextMessage(response.toString()));
+    }
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    segmentScheduler.shutdownNow();
+  }
+
   @Override
   public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
     stop(session);
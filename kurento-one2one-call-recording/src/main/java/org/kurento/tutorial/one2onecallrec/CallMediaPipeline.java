@@ -16,11 +16,16 @@
 
 package org.kurento.tutorial.one2onecallrec;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
+import org.kurento.client.Continuation;
 import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaProfileSpecType;
 import org.kurento.client.RecorderEndpoint;
 import org.kurento.client.WebRtcEndpoint;
 
@@ -33,41 +38,99 @@ import org.kurento.client.WebRtcEndpoint;
  */
 public class CallMediaPipeline {
 
-  private static final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-S");
-  public static final String RECORDING_PATH = "file:///tmp/" + df.format(new Date()) + "-";
+  public static final String RECORDING_DIR = "file:///tmp/";
   public static final String RECORDING_EXT = ".webm";
+  public static final MediaProfileSpecType RECORDING_PROFILE = MediaProfileSpecType.WEBM;
+  // <call id>-<user>[-<segment>].webm, the user being the owner of the file
+  public static final Pattern RECORDING_NAME_PATTERN = Pattern.compile(
+      "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}-(.+?)(?:-\\d{4})?\\.webm");
 
   private final MediaPipeline pipeline;
   private final WebRtcEndpoint webRtcCaller;
   private final WebRtcEndpoint webRtcCallee;
-  private final RecorderEndpoint recorderCaller;
-  private final RecorderEndpoint recorderCallee;
-
-  public CallMediaPipeline(KurentoClient kurento, String from, String to) {
+  private final SegmentedRecorder recorderCaller;
+  private final SegmentedRecorder recorderCallee;
 
+  public CallMediaPipeline(KurentoClient kurento, RecordingCatalog catalog,
+      RecordingStorage storage, ScheduledExecutorService scheduler, String callId, String from,
+      String to) {
     // Media pipeline
     pipeline = kurento.createMediaPipeline();
 
-    // Media Elements (WebRtcEndpoint, RecorderEndpoint)
+    // Media Elements (WebRtcEndpoint, SegmentedRecorder)
     webRtcCaller = new WebRtcEndpoint.Builder(pipeline).build();
     webRtcCallee = new WebRtcEndpoint.Builder(pipeline).build();
 
-    recorderCaller = new RecorderEndpoint.Builder(pipeline, RECORDING_PATH + from + RECORDING_EXT)
-        .build();
-    recorderCallee = new RecorderEndpoint.Builder(pipeline, RECORDING_PATH + to + RECORDING_EXT)
-        .build();
+    recorderCaller = new SegmentedRecorder(pipeline, webRtcCaller,
+        RECORDING_DIR + callId + "-" + from, RECORDING_EXT, RECORDING_PROFILE,
+        One2OneCallRecApp.SEGMENT_DURATION, One2OneCallRecApp.SEGMENT_SIZE, scheduler,
+        segmentListener(catalog, storage, callId, from, to));
+    recorderCallee = new SegmentedRecorder(pipeline, webRtcCallee,
+        RECORDING_DIR + callId + "-" + to, RECORDING_EXT, RECORDING_PROFILE,
+        One2OneCallRecApp.SEGMENT_DURATION, One2OneCallRecApp.SEGMENT_SIZE, scheduler,
+        segmentListener(catalog, storage, callId, to, from));
 
     // Connections
     webRtcCaller.connect(webRtcCallee);
-    webRtcCaller.connect(recorderCaller);
-
     webRtcCallee.connect(webRtcCaller);
-    webRtcCallee.connect(recorderCallee);
   }
 
   public void record() {
-    recorderCaller.record();
-    recorderCallee.record();
+    recorderCaller.start();
+    recorderCallee.start();
+  }
+
+  /**
+   * Stops recording and releases the pipeline once the last segments of both users have been
+   * reported as finished.
+   */
+  public void stopAndRelease() {
+    final AtomicInteger pending = new AtomicInteger(2);
+    Continuation<Void> release = new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        if (pending.decrementAndGet() == 0) {
+          pipeline.release();
+        }
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        onSuccess(null);
+      }
+    };
+    recorderCaller.stop(release);
+    recorderCallee.stop(release);
+  }
+
+  /**
+   * Adds each segment of a user to the catalog and to the storage accounting as soon as it
+   * starts, and marks it as finished when its file is complete.
+   */
+  private static SegmentedRecorder.Listener segmentListener(final RecordingCatalog catalog,
+      final RecordingStorage storage, final String callId, final String user,
+      final String peer) {
+    return new SegmentedRecorder.Listener() {
+      private final ConcurrentMap<Integer, Long> ids = new ConcurrentHashMap<>();
+
+      @Override
+      public void onSegmentStarted(SegmentedRecorder.Segment segment,
+          RecorderEndpoint recorder) {
+        RecordingCatalog.Recording recording = catalog.add(callId, user, peer, segment.getUrl(),
+            RECORDING_PROFILE.name(), segment.getStartTime());
+        ids.put(segment.getIndex(), recording.getId());
+        storage.add(user, segment.getUrl());
+      }
+
+      @Override
+      public void onSegmentFinished(SegmentedRecorder.Segment segment) {
+        storage.finish(segment.getUrl());
+        Long id = ids.remove(segment.getIndex());
+        if (id != null) {
+          catalog.finish(id, segment.getEndTime());
+        }
+      }
+    };
   }
 
   public String generateSdpAnswerForCaller(String sdpOffer) {
@@ -17,6 +17,10 @@
 
 package org.kurento.tutorial.one2onecallrec;
 
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Paths;
+
 import org.kurento.client.KurentoClient;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
@@ -36,6 +40,30 @@ import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry
 @EnableWebSocket
 public class One2OneCallRecApp implements WebSocketConfigurer {
 
+  protected static final String DEFAULT_CATALOG_FILE = "/tmp/one2one-recordings.catalog";
+
+  // Zero records each user of a call to a single file
+  protected static final long DEFAULT_SEGMENT_DURATION = 0;
+
+  protected static final long SEGMENT_DURATION = Long.getLong("recording.segmentDuration",
+      DEFAULT_SEGMENT_DURATION);
+
+  protected static final long DEFAULT_SEGMENT_SIZE = 0;
+
+  protected static final long SEGMENT_SIZE = Long.getLong("recording.segmentSize",
+      DEFAULT_SEGMENT_SIZE);
+
+  protected static final long DEFAULT_STORAGE_GLOBAL_QUOTA = 10L * 1024 * 1024 * 1024;
+
+  protected static final long DEFAULT_STORAGE_USER_QUOTA = 1024L * 1024 * 1024;
+
+  // Zero keeps the recordings until they are deleted by hand
+  protected static final long DEFAULT_STORAGE_MAX_AGE = 0;
+
+  protected static final long DEFAULT_STORAGE_MAX_SIZE = 0;
+
+  protected static final long DEFAULT_STORAGE_SWEEP_INTERVAL = 60000;
+
   @Bean
   public CallHandler callHandler() {
     return new CallHandler();
@@ -46,6 +74,34 @@ public class One2OneCallRecApp implements WebSocketConfigurer {
     return new UserRegistry();
   }
 
+  @Bean
+  public RecordingCatalog recordingCatalog() throws IOException {
+    return new RecordingCatalog(Paths.get(System.getProperty("recording.catalog",
+        DEFAULT_CATALOG_FILE)));
+  }
+
+  @Bean
+  public RecordingStorage recordingStorage() throws IOException {
+    RecordingStorage storage = new RecordingStorage(
+        Paths.get(URI.create(CallMediaPipeline.RECORDING_DIR)),
+        CallMediaPipeline.RECORDING_NAME_PATTERN,
+        Long.getLong("storage.globalQuota", DEFAULT_STORAGE_GLOBAL_QUOTA),
+        Long.getLong("storage.userQuota", DEFAULT_STORAGE_USER_QUOTA),
+        Long.getLong("storage.maxAge", DEFAULT_STORAGE_MAX_AGE),
+        Long.getLong("storage.maxSize", DEFAULT_STORAGE_MAX_SIZE),
+        Long.getLong("storage.sweepInterval", DEFAULT_STORAGE_SWEEP_INTERVAL));
+
+    // Recordings deleted by the sweeper can no longer be found or played
+    final RecordingCatalog catalog = recordingCatalog();
+    storage.setListener(new RecordingStorage.Listener() {
+      @Override
+      public void onDeleted(String url) {
+        catalog.remove(url);
+      }
+    });
+    return storage;
+  }
+
   @Bean
   public KurentoClient kurentoClient() {
     return KurentoClient.create();
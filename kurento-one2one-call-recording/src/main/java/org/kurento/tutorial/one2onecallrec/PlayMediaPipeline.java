@@ -17,11 +17,10 @@
 
 package org.kurento.tutorial.one2onecallrec;
 
-import static org.kurento.tutorial.one2onecallrec.CallMediaPipeline.RECORDING_EXT;
-import static org.kurento.tutorial.one2onecallrec.CallMediaPipeline.RECORDING_PATH;
-
 import java.io.IOException;
+import java.util.List;
 
+import org.kurento.client.EndOfStreamEvent;
 import org.kurento.client.ErrorEvent;
 import org.kurento.client.EventListener;
 import org.kurento.client.KurentoClient;
@@ -48,15 +47,37 @@ public class PlayMediaPipeline {
 
   private final MediaPipeline pipeline;
   private WebRtcEndpoint webRtc;
-  private final PlayerEndpoint player;
+  private final List<String> urls;
+  private final WebSocketSession session;
+  private volatile PlayerEndpoint player;
+  private volatile EventListener<EndOfStreamEvent> endOfPlayListener;
+
+  /**
+   * @param urls
+   *          the segments of the recording, played in order
+   */
+  public PlayMediaPipeline(KurentoClient kurento, List<String> urls,
+      final WebSocketSession session) {
+    this.urls = urls;
+    this.session = session;
 
-  public PlayMediaPipeline(KurentoClient kurento, String user, final WebSocketSession session) {
     // Media pipeline
     pipeline = kurento.createMediaPipeline();
 
     // Media Elements (WebRtcEndpoint, PlayerEndpoint)
     webRtc = new WebRtcEndpoint.Builder(pipeline).build();
-    player = new PlayerEndpoint.Builder(pipeline, RECORDING_PATH + user + RECORDING_EXT).build();
+    player = createPlayer(0);
+  }
+
+  /**
+   * Sets the listener of the end of the last segment.
+   */
+  public void setEndOfPlayListener(EventListener<EndOfStreamEvent> listener) {
+    this.endOfPlayListener = listener;
+  }
+
+  private PlayerEndpoint createPlayer(final int index) {
+    final PlayerEndpoint player = new PlayerEndpoint.Builder(pipeline, urls.get(index)).build();
 
     // Connection
     player.connect(webRtc);
@@ -69,6 +90,20 @@ public class PlayMediaPipeline {
         sendPlayEnd(session);
       }
     });
+    player.addEndOfStreamListener(new EventListener<EndOfStreamEvent>() {
+      @Override
+      public void onEvent(EndOfStreamEvent event) {
+        if (index + 1 < urls.size() && webRtc != null) {
+          PlayerEndpoint next = createPlayer(index + 1);
+          PlayMediaPipeline.this.player = next;
+          next.play();
+          player.release();
+        } else if (endOfPlayListener != null) {
+          endOfPlayListener.onEvent(event);
+        }
+      }
+    });
+    return player;
   }
 
   public void sendPlayEnd(WebSocketSession session) {
@@ -0,0 +1,546 @@
+/*
+ * (C) Copyright 2015 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.one2onecallrec;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+/**
+ * Catalog of the recordings made by the application, to find them by user, call, start time,
+ * duration or media profile without scanning the recordings directory.
+ * <p>
+ * The catalog is kept in memory, indexed by each of those keys, and every change is appended to a
+ * log file, one JSON object per line, which is replayed when the application starts. Entries are
+ * never rewritten: a recording is added when it starts, its end is appended when it finishes, and
+ * its removal is appended when its file is deleted.
+ */
+public class RecordingCatalog {
+
+  private static final Logger log = LoggerFactory.getLogger(RecordingCatalog.class);
+  private static final Gson gson = new GsonBuilder().create();
+
+  // Oldest first, ties broken by id so different recordings are never equal
+  private static final Comparator<Recording> BY_TIME = new Comparator<Recording>() {
+    @Override
+    public int compare(Recording r1, Recording r2) {
+      int result = Long.compare(r1.startTime, r2.startTime);
+      return result != 0 ? result : Long.compare(r1.id, r2.id);
+    }
+  };
+
+  private static final Comparator<Recording> BY_DURATION = new Comparator<Recording>() {
+    @Override
+    public int compare(Recording r1, Recording r2) {
+      int result = Long.compare(r1.getDuration(), r2.getDuration());
+      return result != 0 ? result : Long.compare(r1.id, r2.id);
+    }
+  };
+
+  private final Path file;
+  private final BufferedWriter writer;
+  private long nextId = 1;
+
+  private final Map<Long, Recording> byId = new HashMap<>();
+  private final Map<String, Recording> byUrl = new HashMap<>();
+  private final NavigableSet<Recording> byTime = new TreeSet<>(BY_TIME);
+  private final Map<String, NavigableSet<Recording>> byUser = new HashMap<>();
+  private final Map<String, NavigableSet<Recording>> byProfile = new HashMap<>();
+  private final Map<String, NavigableSet<Recording>> byCall = new HashMap<>();
+  // Only finished recordings, whose duration is known
+  private final NavigableSet<Recording> byDuration = new TreeSet<>(BY_DURATION);
+
+  /**
+   * A recording of one of the users of a call.
+   */
+  public static class Recording {
+    private final long id;
+    private final String callId;
+    private final String user;
+    private final String peer;
+    private final String url;
+    private final String profile;
+    private final long startTime;
+    private long endTime = -1;
+
+    private Recording(long id, String callId, String user, String peer, String url,
+        String profile, long startTime) {
+      this.id = id;
+      this.callId = callId;
+      this.user = user;
+      this.peer = peer;
+      this.url = url;
+      this.profile = profile;
+      this.startTime = startTime;
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    public String getCallId() {
+      return callId;
+    }
+
+    public String getUser() {
+      return user;
+    }
+
+    public String getPeer() {
+      return peer;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    public String getProfile() {
+      return profile;
+    }
+
+    public long getStartTime() {
+      return startTime;
+    }
+
+    /**
+     * @return the end time of the recording, or -1 if it has not finished
+     */
+    public long getEndTime() {
+      return endTime;
+    }
+
+    /**
+     * @return the duration of the recording, or -1 if it has not finished
+     */
+    public long getDuration() {
+      return endTime < 0 ? -1 : endTime - startTime;
+    }
+
+    public JsonObject toJson() {
+      JsonObject json = new JsonObject();
+      json.addProperty("id", id);
+      json.addProperty("callId", callId);
+      json.addProperty("user", user);
+      json.addProperty("peer", peer);
+      json.addProperty("url", url);
+      json.addProperty("profile", profile);
+      json.addProperty("startTime", startTime);
+      json.addProperty("endTime", endTime);
+      json.addProperty("duration", getDuration());
+      return json;
+    }
+  }
+
+  /**
+   * Conditions of a search. Unset conditions match every recording. Results are returned newest
+   * first, {@code limit} at a time.
+   */
+  public static class Query {
+    private String user;
+    private String callId;
+    private String profile;
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+    private long minDuration = -1;
+    private long maxDuration = Long.MAX_VALUE;
+    private int offset;
+    private int limit = 20;
+
+    public Query user(String user) {
+      this.user = user;
+      return this;
+    }
+
+    public Query callId(String callId) {
+      this.callId = callId;
+      return this;
+    }
+
+    public Query profile(String profile) {
+      this.profile = profile;
+      return this;
+    }
+
+    /**
+     * Recordings started in a time range.
+     *
+     * @param from
+     *          start of the range, inclusive
+     * @param to
+     *          end of the range, exclusive
+     * @return this query
+     */
+    public Query startedBetween(long from, long to) {
+      this.from = from;
+      this.to = to;
+      return this;
+    }
+
+    /**
+     * Finished recordings with a duration in a range.
+     *
+     * @param minDuration
+     *          minimum duration, inclusive
+     * @param maxDuration
+     *          maximum duration, inclusive
+     * @return this query
+     */
+    public Query durationBetween(long minDuration, long maxDuration) {
+      this.minDuration = Math.max(0, minDuration);
+      this.maxDuration = maxDuration;
+      return this;
+    }
+
+    public Query page(int offset, int limit) {
+      this.offset = Math.max(0, offset);
+      this.limit = Math.max(1, limit);
+      return this;
+    }
+
+    private boolean matches(Recording recording) {
+      return (user == null || user.equals(recording.user))
+          && (callId == null || callId.equals(recording.callId))
+          && (profile == null || profile.equals(recording.profile))
+          && recording.startTime >= from && recording.startTime < to
+          && (minDuration < 0 || recording.getDuration() >= minDuration)
+          && recording.getDuration() <= maxDuration;
+    }
+  }
+
+  /**
+   * A page of the results of a query.
+   */
+  public static class Page {
+    private final List<Recording> recordings;
+    private final int offset;
+    private final boolean more;
+
+    private Page(List<Recording> recordings, int offset, boolean more) {
+      this.recordings = recordings;
+      this.offset = offset;
+      this.more = more;
+    }
+
+    public List<Recording> getRecordings() {
+      return recordings;
+    }
+
+    public int getOffset() {
+      return offset;
+    }
+
+    /**
+     * @return true if there are more results after this page
+     */
+    public boolean hasMore() {
+      return more;
+    }
+  }
+
+  /**
+   * Opens a catalog, replaying its log file if it exists.
+   *
+   * @param file
+   *          the log file of the catalog
+   */
+  public RecordingCatalog(Path file) throws IOException {
+    this.file = file;
+    if (Files.exists(file)) {
+      replay();
+    } else if (file.getParent() != null) {
+      Files.createDirectories(file.getParent());
+    }
+    this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND);
+    log.info("Recording catalog {} opened with {} recordings", file, byId.size());
+  }
+
+  /**
+   * Adds a recording that has just started.
+   *
+   * @return the recording
+   */
+  public synchronized Recording add(String callId, String user, String peer, String url,
+      String profile, long startTime) {
+    Recording recording = new Recording(nextId, callId, user, peer, url, profile, startTime);
+    index(recording);
+
+    JsonObject entry = recording.toJson();
+    entry.remove("endTime");
+    entry.remove("duration");
+    entry.addProperty("op", "add");
+    append(entry);
+    return recording;
+  }
+
+  /**
+   * Marks a recording as finished, if it was not already.
+   *
+   * @param id
+   *          the id of the recording
+   * @param endTime
+   *          the time the recording finished
+   */
+  public synchronized void finish(long id, long endTime) {
+    Recording recording = byId.get(id);
+    if (recording != null && recording.endTime < 0) {
+      finishAndLog(recording, endTime);
+    }
+  }
+
+  /**
+   * Removes a recording whose file has been deleted.
+   *
+   * @param url
+   *          the URL of the recording
+   */
+  public synchronized void remove(String url) {
+    Recording recording = byUrl.get(url);
+    if (recording == null) {
+      return;
+    }
+    unindex(recording);
+
+    JsonObject entry = new JsonObject();
+    entry.addProperty("op", "remove");
+    entry.addProperty("id", recording.id);
+    append(entry);
+  }
+
+  /**
+   * @return the last recording of a user, or null if there is none
+   */
+  public synchronized Recording getLatest(String user) {
+    NavigableSet<Recording> recordings = byUser.get(user);
+    return recordings == null || recordings.isEmpty() ? null : recordings.last();
+  }
+
+  /**
+   * @return the segments recorded for a user in a call, oldest first
+   */
+  public synchronized List<Recording> getSegments(String callId, String user) {
+    List<Recording> segments = new ArrayList<>();
+    NavigableSet<Recording> recordings = byCall.get(callId);
+    if (recordings != null) {
+      for (Recording recording : recordings) {
+        if (recording.user.equals(user)) {
+          segments.add(recording);
+        }
+      }
+    }
+    return segments;
+  }
+
+  /**
+   * Finds recordings, using the most selective index of the query.
+   *
+   * @param query
+   *          the conditions of the search
+   * @return a page of the recordings found, newest first
+   */
+  public synchronized Page find(Query query) {
+    NavigableSet<Recording> candidates;
+    if (query.callId != null) {
+      candidates = range(byCall.get(query.callId), query);
+    } else if (query.user != null) {
+      candidates = range(byUser.get(query.user), query);
+    } else if (query.profile != null) {
+      candidates = range(byProfile.get(query.profile), query);
+    } else if (query.minDuration >= 0 && query.from == Long.MIN_VALUE
+        && query.to == Long.MAX_VALUE) {
+      // Results are sorted by start time, not by duration
+      candidates = new TreeSet<>(BY_TIME);
+      candidates.addAll(byDuration.subSet(durationProbe(query.minDuration, Long.MIN_VALUE), true,
+          durationProbe(query.maxDuration, Long.MAX_VALUE), true));
+    } else {
+      candidates = range(byTime, query);
+    }
+
+    Iterator<Recording> it = candidates.descendingIterator();
+
+    List<Recording> page = new ArrayList<>();
+    int skipped = 0;
+    while (it.hasNext()) {
+      Recording recording = it.next();
+      if (!query.matches(recording)) {
+        continue;
+      }
+      if (skipped < query.offset) {
+        skipped++;
+      } else if (page.size() < query.limit) {
+        page.add(recording);
+      } else {
+        return new Page(page, query.offset, true);
+      }
+    }
+    return new Page(page, query.offset, false);
+  }
+
+  public synchronized int size() {
+    return byId.size();
+  }
+
+  @PreDestroy
+  public synchronized void close() throws IOException {
+    writer.close();
+  }
+
+  private NavigableSet<Recording> range(NavigableSet<Recording> recordings, Query query) {
+    if (recordings == null) {
+      return Collections.emptyNavigableSet();
+    }
+    return recordings.subSet(timeProbe(query.from), true, timeProbe(query.to), false);
+  }
+
+  private static Recording timeProbe(long startTime) {
+    return new Recording(Long.MIN_VALUE, null, null, null, null, null, startTime);
+  }
+
+  private static Recording durationProbe(long duration, long id) {
+    Recording probe = new Recording(id, null, null, null, null, null, 0);
+    probe.endTime = duration;
+    return probe;
+  }
+
+  private void index(Recording recording) {
+    byId.put(recording.id, recording);
+    byUrl.put(recording.url, recording);
+    byTime.add(recording);
+    indexIn(byUser, recording.user, recording);
+    indexIn(byProfile, recording.profile, recording);
+    indexIn(byCall, recording.callId, recording);
+    nextId = Math.max(nextId, recording.id + 1);
+  }
+
+  private void unindex(Recording recording) {
+    byId.remove(recording.id);
+    byUrl.remove(recording.url);
+    byTime.remove(recording);
+    unindexIn(byUser, recording.user, recording);
+    unindexIn(byProfile, recording.profile, recording);
+    unindexIn(byCall, recording.callId, recording);
+    if (recording.endTime >= 0) {
+      byDuration.remove(recording);
+    }
+  }
+
+  private void unindexIn(Map<String, NavigableSet<Recording>> index, String key,
+      Recording recording) {
+    NavigableSet<Recording> recordings = index.get(key);
+    if (recordings != null) {
+      recordings.remove(recording);
+      if (recordings.isEmpty()) {
+        index.remove(key);
+      }
+    }
+  }
+
+  private void indexIn(Map<String, NavigableSet<Recording>> index, String key,
+      Recording recording) {
+    NavigableSet<Recording> recordings = index.get(key);
+    if (recordings == null) {
+      recordings = new TreeSet<>(BY_TIME);
+      index.put(key, recordings);
+    }
+    recordings.add(recording);
+  }
+
+  private void finish(Recording recording, long endTime) {
+    recording.endTime = endTime;
+    byDuration.add(recording);
+  }
+
+  private void finishAndLog(Recording recording, long endTime) {
+    finish(recording, endTime);
+
+    JsonObject entry = new JsonObject();
+    entry.addProperty("op", "finish");
+    entry.addProperty("id", recording.id);
+    entry.addProperty("endTime", endTime);
+    append(entry);
+  }
+
+  private void append(JsonObject entry) {
+    try {
+      writer.write(entry.toString());
+      writer.newLine();
+      writer.flush();
+    } catch (IOException e) {
+      log.error("Could not write to recording catalog {}", file, e);
+    }
+  }
+
+  private void replay() throws IOException {
+    int lineNumber = 0;
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        try {
+          JsonObject entry = gson.fromJson(line, JsonObject.class);
+          String op = entry.get("op").getAsString();
+          if ("add".equals(op)) {
+            index(new Recording(entry.get("id").getAsLong(), entry.get("callId").getAsString(),
+                entry.get("user").getAsString(), entry.get("peer").getAsString(),
+                entry.get("url").getAsString(), entry.get("profile").getAsString(),
+                entry.get("startTime").getAsLong()));
+          } else {
+            Recording recording = byId.get(entry.get("id").getAsLong());
+            if (recording == null) {
+              continue;
+            }
+            if ("remove".equals(op)) {
+              unindex(recording);
+            } else if (recording.endTime < 0) {
+              finish(recording, entry.get("endTime").getAsLong());
+            }
+          }
+        } catch (RuntimeException e) {
+          // A line cut by a crash is skipped, the rest of the log is still valid
+          log.warn("Skipping invalid entry at line {} of recording catalog {}", lineNumber, file);
+        }
+      }
+    }
+  }
+
+}
@@ -17,13 +17,19 @@
 
 package org.kurento.tutorial.one2onecallrec;
 
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.springframework.web.socket.WebSocketSession;
 
 /**
- * Map of users registered in the system. This class has a concurrent hash map to store users, using
- * its name as key in the map.
+ * Map of users registered in the system. This class has two concurrent hash maps to store users,
+ * indexed by name and by session id, and guarantees that each name is registered only once. Both
+ * maps are updated together under a single lock, so registrations and removals never interleave;
+ * lookups do not take the lock.
  * 
  * @author Boni Garcia (bgarcia@gsyc.es)
  * @author Micael Gallego (micael.gallego@gmail.com)
@@ -31,12 +37,36 @@ import org.springframework.web.socket.WebSocketSession;
  */
 public class UserRegistry {
 
-  private ConcurrentHashMap<String, UserSession> usersByName = new ConcurrentHashMap<>();
-  private ConcurrentHashMap<String, UserSession> usersBySessionId = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, UserSession> usersByName = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, UserSession> usersBySessionId = new ConcurrentHashMap<>();
 
-  public void register(UserSession user) {
-    usersByName.put(user.getName(), user);
-    usersBySessionId.put(user.getSession().getId(), user);
+  // Guards the updates of both maps
+  private final Object lock = new Object();
+
+  private final AtomicLong registrations = new AtomicLong();
+  private final AtomicLong removals = new AtomicLong();
+
+  /**
+   * Registers a user, if neither its name nor its session are taken. Lookups running at the same
+   * time can see the user by its name a moment before they see it by its session, never the other
+   * way round: the name is indexed first and, on removal, released last.
+   *
+   * @param user
+   *          the user to register
+   * @return true if the user has been registered, false if its name or session were already
+   *         registered
+   */
+  public boolean register(UserSession user) {
+    synchronized (lock) {
+      if (usersByName.containsKey(user.getName())
+          || usersBySessionId.containsKey(user.getSession().getId())) {
+        return false;
+      }
+      usersByName.put(user.getName(), user);
+      usersBySessionId.put(user.getSession().getId(), user);
+    }
+    registrations.incrementAndGet();
+    return true;
   }
 
   public UserSession getByName(String name) {
@@ -48,16 +78,60 @@ public class UserRegistry {
   }
 
   public boolean exists(String name) {
-    return usersByName.keySet().contains(name);
+    return usersByName.containsKey(name);
+  }
+
+  /**
+   * Checks the presence of several users at once.
+   *
+   * @param names
+   *          the names to look for
+   * @return the names that are registered
+   */
+  public Set<String> getPresent(Collection<String> names) {
+    final Set<String> present = new HashSet<>();
+    for (final String name : names) {
+      if (usersByName.containsKey(name)) {
+        present.add(name);
+      }
+    }
+    return present;
   }
 
   public UserSession removeBySession(WebSocketSession session) {
-    final UserSession user = getBySession(session);
+    final UserSession user;
+    synchronized (lock) {
+      user = usersBySessionId.remove(session.getId());
+      if (user != null) {
+        usersByName.remove(user.getName(), user);
+      }
+    }
     if (user != null) {
-      usersByName.remove(user.getName());
-      usersBySessionId.remove(session.getId());
+      removals.incrementAndGet();
     }
     return user;
   }
 
+  public int size() {
+    return usersBySessionId.size();
+  }
+
+  /**
+   * Number of successful registrations since startup.
+   *
+   * @return the number of registrations
+   */
+  public long getRegistrations() {
+    return registrations.get();
+  }
+
+  /**
+   * Number of users removed since startup.
+   *
+   * @return the number of removals
+   */
+  public long getRemovals() {
+    return removals.get();
+  }
+
 }
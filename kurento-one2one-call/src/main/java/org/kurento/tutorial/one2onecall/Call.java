@@ -0,0 +1,169 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.one2onecall;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A 1 to 1 call between two users, and the resources held for it in each {@link CallState}.
+ * Transitions are atomic, so when several events race (an answer, a stop, the ring timeout) only
+ * the first one moving the call forward takes effect.
+ */
+public class Call {
+
+  private final UserSession caller;
+  private final UserSession callee;
+
+  private CallState state = CallState.IDLE;
+  private String callerSdpOffer;
+  private CompletableFuture<CallMediaPipeline> prewarmed;
+  private TimerWheel.Timeout ringTimeout;
+  private CallMediaPipeline pipeline;
+  private boolean callerHolds;
+  private boolean calleeHolds;
+
+  public Call(UserSession caller, UserSession callee, String callerSdpOffer) {
+    this.caller = caller;
+    this.callee = callee;
+    this.callerSdpOffer = callerSdpOffer;
+  }
+
+  public UserSession getCaller() {
+    return caller;
+  }
+
+  public UserSession getCallee() {
+    return callee;
+  }
+
+  /**
+   * @param user
+   *          one of the users of the call
+   * @return the other user of the call
+   */
+  public UserSession getPeer(UserSession user) {
+    return user == caller ? callee : caller;
+  }
+
+  public synchronized CallState getState() {
+    return state;
+  }
+
+  /**
+   * Moves the call to another state, if it is still in the expected one.
+   *
+   * @param from
+   *          the state the call is expected to be in
+   * @param to
+   *          the new state
+   * @return true if the call has moved
+   */
+  public synchronized boolean moveTo(CallState from, CallState to) {
+    if (state != from || !from.canMoveTo(to)) {
+      return false;
+    }
+    state = to;
+    return true;
+  }
+
+  public synchronized String getCallerSdpOffer() {
+    return callerSdpOffer;
+  }
+
+  /**
+   * @param prewarmed
+   *          the pipeline being built while ringing
+   * @return false if the call is already terminating, so the pipeline has to be discarded by the
+   *         caller
+   */
+  public synchronized boolean setPrewarmed(CompletableFuture<CallMediaPipeline> prewarmed) {
+    if (state == CallState.TERMINATING) {
+      return false;
+    }
+    this.prewarmed = prewarmed;
+    return true;
+  }
+
+  /**
+   * @return the pipeline being built while ringing, if any, which is no longer held by the call
+   */
+  public synchronized CompletableFuture<CallMediaPipeline> takePrewarmed() {
+    CompletableFuture<CallMediaPipeline> result = prewarmed;
+    prewarmed = null;
+    return result;
+  }
+
+  public synchronized void setRingTimeout(TimerWheel.Timeout ringTimeout) {
+    this.ringTimeout = ringTimeout;
+  }
+
+  public synchronized CallMediaPipeline getPipeline() {
+    return pipeline;
+  }
+
+  /**
+   * Hands a pipeline to the users of the call, taking a reference to it for each of them. The
+   * reference of whoever built the pipeline is not used by the call.
+   *
+   * @param pipeline
+   *          the pipeline of the call
+   * @return false if the call is already terminating or the pipeline has been released
+   */
+  public synchronized boolean setPipeline(CallMediaPipeline pipeline) {
+    if (state == CallState.TERMINATING || !pipeline.retain()) {
+      return false;
+    }
+    pipeline.retain();
+    this.pipeline = pipeline;
+    this.callerHolds = true;
+    this.calleeHolds = true;
+    return true;
+  }
+
+  /**
+   * Takes the reference to the pipeline held for one of the users, so it can be dropped.
+   *
+   * @param user
+   *          one of the users of the call
+   * @return the pipeline, or null if the user did not hold it anymore
+   */
+  public synchronized CallMediaPipeline leave(UserSession user) {
+    boolean held;
+    if (user == caller) {
+      held = callerHolds;
+      callerHolds = false;
+    } else {
+      held = calleeHolds;
+      calleeHolds = false;
+    }
+    return held ? pipeline : null;
+  }
+
+  /**
+   * Ends the ringing phase: cancels the ring timeout and frees the offer of the caller, which is
+   * not needed once it has been answered.
+   */
+  public synchronized void stopRinging() {
+    if (ringTimeout != null) {
+      ringTimeout.cancel();
+      ringTimeout = null;
+    }
+    callerSdpOffer = null;
+  }
+
+}
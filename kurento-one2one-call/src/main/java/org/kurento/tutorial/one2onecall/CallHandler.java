@@ -18,12 +18,28 @@
 package org.kurento.tutorial.one2onecall;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.IceCandidateFoundEvent;
-import org.kurento.client.KurentoClient;
 import org.kurento.jsonrpc.JsonUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,7 +51,10 @@ import org.springframework.web.socket.handler.TextWebSocketHandler;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
 /**
  * Protocol handler for 1 to 1 video call communication.
@@ -49,14 +68,48 @@ public class CallHandler extends TextWebSocketHandler {
   private static final Logger log = LoggerFactory.getLogger(CallHandler.class);
   private static final Gson gson = new GsonBuilder().create();
 
-  private final ConcurrentHashMap<String, CallMediaPipeline> pipelines = new ConcurrentHashMap<>();
+  // Calls in progress, by session id of both of their users
+  private final ConcurrentHashMap<String, Call> calls = new ConcurrentHashMap<>();
+
+  // Pipelines built and not released yet, whether they belong to a call or not
+  private final Set<CallMediaPipeline> livePipelines = ConcurrentHashMap.newKeySet();
+
+  private final Map<CallState, AtomicInteger> callStates = new EnumMap<>(CallState.class);
+
+  {
+    for (CallState state : CallState.values()) {
+      callStates.put(state, new AtomicInteger());
+    }
+  }
+
+  private final ScheduledExecutorService prewarmExecutor = Executors.newScheduledThreadPool(
+      Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "call-prewarm-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final AtomicLong acceptedCalls = new AtomicLong();
+  private final AtomicLong prewarmHits = new AtomicLong();
+  private final AtomicLong acceptToMediaMillis = new AtomicLong();
 
   @Autowired
-  private KurentoClient kurento;
+  private SharedPipelinePool sharedPipelines;
 
   @Autowired
   private UserRegistry registry;
 
+  @Autowired
+  private OutboundMessageSender messageSender;
+
+  @Autowired
+  private TimerWheel timerWheel;
+
   @Override
   public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
     JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
@@ -96,6 +149,12 @@ public class CallHandler extends TextWebSocketHandler {
         }
         break;
       }
+      case "presence":
+        presence(session, jsonMessage);
+        break;
+      case "callStats":
+        callStats(session);
+        break;
       case "stop":
         stop(session);
         break;
@@ -112,20 +171,18 @@ public class CallHandler extends TextWebSocketHandler {
     response.addProperty("id", responseId);
     response.addProperty("response", "rejected");
     response.addProperty("message", throwable.getMessage());
-    session.sendMessage(new TextMessage(response.toString()));
+    messageSender.send(session, response.toString());
   }
 
   private void register(WebSocketSession session, JsonObject jsonMessage) throws IOException {
     String name = jsonMessage.getAsJsonPrimitive("name").getAsString();
 
-    UserSession caller = new UserSession(session, name);
+    UserSession caller = new UserSession(session, name, messageSender);
     String responseMsg = "accepted";
     if (name.isEmpty()) {
       responseMsg = "rejected: empty user name";
-    } else if (registry.exists(name)) {
+    } else if (!registry.register(caller)) {
       responseMsg = "rejected: user '" + name + "' already registered";
-    } else {
-      registry.register(caller);
     }
 
     JsonObject response = new JsonObject();
@@ -134,44 +191,325 @@ public class CallHandler extends TextWebSocketHandler {
     caller.sendMessage(response);
   }
 
+  private void presence(WebSocketSession session, JsonObject jsonMessage) {
+    List<String> names = new ArrayList<>();
+    for (JsonElement name : jsonMessage.getAsJsonArray("names")) {
+      names.add(name.getAsString());
+    }
+
+    JsonArray online = new JsonArray();
+    for (String name : registry.getPresent(names)) {
+      online.add(new JsonPrimitive(name));
+    }
+
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "presenceResponse");
+    response.add("online", online);
+    messageSender.send(session, response.toString());
+  }
+
+  private void callStats(WebSocketSession session) {
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "callStatsResponse");
+    response.addProperty("idleUsers", Math.max(0, registry.size() - calls.size()));
+    for (CallState state : CallState.values()) {
+      response.addProperty(state.name().toLowerCase(), callStates.get(state).get());
+    }
+    response.addProperty("pipelines", sharedPipelines.getPipelineCount());
+    response.addProperty("livePipelines", livePipelines.size());
+    response.addProperty("leakedPipelines", findLeakedPipelines().size());
+    messageSender.send(session, response.toString());
+  }
+
   private void call(UserSession caller, JsonObject jsonMessage) throws IOException {
     String to = jsonMessage.get("to").getAsString();
     String from = jsonMessage.get("from").getAsString();
     JsonObject response = new JsonObject();
 
-    if (registry.exists(to)) {
-      caller.setSdpOffer(jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString());
-      caller.setCallingTo(to);
+    UserSession callee = registry.getByName(to);
+    if (callee == null) {
+      response.addProperty("id", "callResponse");
+      response.addProperty("response", "rejected: user '" + to + "' is not registered");
+
+      caller.sendMessage(response);
+      return;
+    }
+
+    final Call call = new Call(caller, callee,
+        jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString());
+    String rejection = null;
+    synchronized (calls) {
+      if (calls.containsKey(caller.getSessionId())) {
+        rejection = "rejected: user '" + from + "' is already in a call";
+      } else if (calls.containsKey(callee.getSessionId())) {
+        rejection = "rejected: user '" + to + "' is busy";
+      } else {
+        calls.put(caller.getSessionId(), call);
+        calls.put(callee.getSessionId(), call);
+      }
+    }
+
+    if (rejection != null) {
+      response.addProperty("id", "callResponse");
+      response.addProperty("response", rejection);
+
+      caller.sendMessage(response);
+    } else {
+      callStates.get(CallState.IDLE).incrementAndGet();
+      transition(call, CallState.IDLE, CallState.RINGING);
+      call.setRingTimeout(timerWheel.schedule(new Runnable() {
+        @Override
+        public void run() {
+          ringTimeout(call);
+        }
+      }, One2OneCallApp.RING_TIMEOUT));
 
       response.addProperty("id", "incomingCall");
       response.addProperty("from", from);
 
-      UserSession callee = registry.getByName(to);
       callee.sendMessage(response);
-      callee.setCallingFrom(from);
-    } else {
-      response.addProperty("id", "callResponse");
-      response.addProperty("response", "rejected: user '" + to + "' is not registered");
 
-      caller.sendMessage(response);
+      prewarm(call);
+    }
+  }
+
+  private void ringTimeout(Call call) {
+    if (!transition(call, CallState.RINGING, CallState.TERMINATING)) {
+      return;
+    }
+    log.debug("Call from '{}' to '{}' not answered in {} ms", call.getCaller().getName(),
+        call.getCallee().getName(), One2OneCallApp.RING_TIMEOUT);
+    end(call);
+
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "callResponse");
+    response.addProperty("response",
+        "rejected: user '" + call.getCallee().getName() + "' did not answer");
+    messageSender.send(call.getCaller().getSession(), response.toString());
+
+    response = new JsonObject();
+    response.addProperty("id", "stopCommunication");
+    messageSender.send(call.getCallee().getSession(), response.toString());
+  }
+
+  /**
+   * Moves a call to another state, keeping the number of calls in each state.
+   *
+   * @return true if the call was in the expected state
+   */
+  private boolean transition(Call call, CallState from, CallState to) {
+    if (!call.moveTo(from, to)) {
+      return false;
     }
+    callStates.get(from).decrementAndGet();
+    callStates.get(to).incrementAndGet();
+    log.trace("Call from '{}' to '{}': {} -> {}", call.getCaller().getName(),
+        call.getCallee().getName(), from, to);
+    return true;
+  }
+
+  /**
+   * Moves a call to {@link CallState#TERMINATING}, whatever its current state.
+   *
+   * @return false if the call was already terminating, so someone else is ending it
+   */
+  private boolean terminate(Call call) {
+    CallState state;
+    do {
+      state = call.getState();
+      if (state == CallState.TERMINATING) {
+        return false;
+      }
+    } while (!transition(call, state, CallState.TERMINATING));
+    return true;
+  }
+
+  /**
+   * Releases everything held by a terminating call and frees both of its users for a new call.
+   */
+  private void end(Call call) {
+    call.stopRinging();
+    discard(call.takePrewarmed());
+    for (UserSession user : new UserSession[] { call.getCaller(), call.getCallee() }) {
+      CallMediaPipeline pipeline = call.leave(user);
+      if (pipeline != null) {
+        release(pipeline);
+      }
+      user.clear();
+    }
+
+    synchronized (calls) {
+      calls.remove(call.getCaller().getSessionId(), call);
+      calls.remove(call.getCallee().getSessionId(), call);
+    }
+    callStates.get(CallState.TERMINATING).decrementAndGet();
+  }
+
+  private CallMediaPipeline createPipeline() {
+    CallMediaPipeline pipeline = new CallMediaPipeline(sharedPipelines);
+    if (!pipeline.isReleased()) {
+      livePipelines.add(pipeline);
+    }
+    return pipeline;
+  }
+
+  /**
+   * Drops a reference to a pipeline, forgetting it once it has been released.
+   */
+  private void release(CallMediaPipeline pipeline) {
+    if (pipeline.release()) {
+      livePipelines.remove(pipeline);
+    }
+  }
+
+  /**
+   * Finds the pipelines held for longer than the longest call allowed. Those are not released
+   * because a reference to them has been lost somewhere.
+   *
+   * @return the leaked pipelines
+   */
+  public List<CallMediaPipeline> findLeakedPipelines() {
+    long now = System.currentTimeMillis();
+    List<CallMediaPipeline> leaked = new ArrayList<>();
+    for (CallMediaPipeline pipeline : livePipelines) {
+      if (pipeline.isReleased()) {
+        livePipelines.remove(pipeline);
+      } else if (now - pipeline.getCreatedAt() > One2OneCallApp.MAX_CALL_DURATION) {
+        leaked.add(pipeline);
+      }
+    }
+    return leaked;
+  }
+
+  private void scheduleLeakCheck() {
+    timerWheel.schedule(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          long now = System.currentTimeMillis();
+          for (CallMediaPipeline pipeline : findLeakedPipelines()) {
+            log.warn("Pipeline {} held for {} ms, longer than the longest call allowed",
+                pipeline.getId(), now - pipeline.getCreatedAt());
+          }
+        } finally {
+          scheduleLeakCheck();
+        }
+      }
+    }, One2OneCallApp.LEAK_CHECK_INTERVAL);
+  }
+
+  /**
+   * Builds the pipeline of a call, connects its endpoints and processes the offer of the caller
+   * while the callee is still ringing, so most of the media server work is already done if the
+   * call is accepted. The pipeline is discarded if the call is rejected, stopped or not answered
+   * in time.
+   *
+   * @param call
+   *          the call that is ringing
+   */
+  private void prewarm(Call call) {
+    final String callerSdpOffer = call.getCallerSdpOffer();
+    final CompletableFuture<CallMediaPipeline> future = CompletableFuture.supplyAsync(
+        new Supplier<CallMediaPipeline>() {
+          @Override
+          public CallMediaPipeline get() {
+            CallMediaPipeline pipeline = createPipeline();
+            if (pipeline.isReady()) {
+              pipeline.prepareCaller(callerSdpOffer);
+            }
+            return pipeline;
+          }
+        }, prewarmExecutor);
+
+    if (!call.setPrewarmed(future)) {
+      discard(future);
+    }
+  }
+
+  private void discard(CompletableFuture<CallMediaPipeline> future) {
+    if (future == null) {
+      return;
+    }
+    future.whenComplete(new BiConsumer<CallMediaPipeline, Throwable>() {
+      @Override
+      public void accept(CallMediaPipeline pipeline, Throwable cause) {
+        if (pipeline != null) {
+          release(pipeline);
+        }
+      }
+    });
+  }
+
+  private CallMediaPipeline takePrewarmed(Call call) {
+    CompletableFuture<CallMediaPipeline> future = call.takePrewarmed();
+    if (future == null) {
+      return null;
+    }
+
+    try {
+      CallMediaPipeline pipeline = future.get();
+      if (pipeline.isReady()) {
+        return pipeline;
+      }
+      release(pipeline);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      discard(future);
+    } catch (ExecutionException e) {
+      log.warn("Could not pre-warm pipeline: {}", e.getCause().getMessage());
+    }
+    return null;
   }
 
   private void incomingCallResponse(final UserSession callee, JsonObject jsonMessage)
       throws IOException {
     String callResponse = jsonMessage.get("callResponse").getAsString();
     String from = jsonMessage.get("from").getAsString();
-    final UserSession calleer = registry.getByName(from);
-    String to = calleer.getCallingTo();
+    final Call call = callee != null ? calls.get(callee.getSessionId()) : null;
+
+    if (call == null || call.getCallee() != callee || !call.getCaller().getName().equals(from)) {
+      log.debug("Answer to a call from '{}' that is no longer ringing", from);
+      if ("accept".equals(callResponse) && callee != null) {
+        JsonObject response = new JsonObject();
+        response.addProperty("id", "stopCommunication");
+        callee.sendMessage(response);
+      }
+      return;
+    }
+
+    final UserSession calleer = call.getCaller();
+    String to = callee.getName();
 
     if ("accept".equals(callResponse)) {
+      if (!transition(call, CallState.RINGING, CallState.CONNECTING)) {
+        JsonObject response = new JsonObject();
+        response.addProperty("id", "stopCommunication");
+        callee.sendMessage(response);
+        return;
+      }
       log.debug("Accepted call from '{}' to '{}'", from, to);
+      final long acceptedAt = System.currentTimeMillis();
+      String callerSdpOffer = call.getCallerSdpOffer();
+      call.stopRinging();
 
       CallMediaPipeline pipeline = null;
       try {
-        pipeline = new CallMediaPipeline(kurento);
-        pipelines.put(calleer.getSessionId(), pipeline);
-        pipelines.put(callee.getSessionId(), pipeline);
+        pipeline = takePrewarmed(call);
+        boolean prewarmHit = pipeline != null;
+        if (!prewarmHit) {
+          pipeline = createPipeline();
+        }
+        if (!pipeline.isReady()) {
+          // Rejected and notified to both users below
+          throw new IllegalStateException("Could not create the pipeline of the call from '"
+              + from + "' to '" + to + "'");
+        }
+        boolean handed = call.setPipeline(pipeline);
+        // The call holds its own references now, or has been stopped meanwhile
+        release(pipeline);
+        if (!handed) {
+          return;
+        }
 
         callee.setWebRtcEndpoint(pipeline.getCalleeWebRtcEp());
         pipeline.getCalleeWebRtcEp().addIceCandidateFoundListener(
@@ -183,9 +521,7 @@ public class CallHandler extends TextWebSocketHandler {
                 response.addProperty("id", "iceCandidate");
                 response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
                 try {
-                  synchronized (callee.getSession()) {
-                    callee.getSession().sendMessage(new TextMessage(response.toString()));
-                  }
+                  callee.sendMessage(response);
                 } catch (IOException e) {
                   log.debug(e.getMessage());
                 }
@@ -202,9 +538,7 @@ public class CallHandler extends TextWebSocketHandler {
                 response.addProperty("id", "iceCandidate");
                 response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
                 try {
-                  synchronized (calleer.getSession()) {
-                    calleer.getSession().sendMessage(new TextMessage(response.toString()));
-                  }
+                  calleer.sendMessage(response);
                 } catch (IOException e) {
                   log.debug(e.getMessage());
                 }
@@ -217,34 +551,38 @@ public class CallHandler extends TextWebSocketHandler {
         startCommunication.addProperty("id", "startCommunication");
         startCommunication.addProperty("sdpAnswer", calleeSdpAnswer);
 
-        synchronized (callee) {
-          callee.sendMessage(startCommunication);
-        }
+        callee.sendMessage(startCommunication);
 
         pipeline.getCalleeWebRtcEp().gatherCandidates();
 
-        String callerSdpOffer = registry.getByName(from).getSdpOffer();
         String callerSdpAnswer = pipeline.generateSdpAnswerForCaller(callerSdpOffer);
         JsonObject response = new JsonObject();
         response.addProperty("id", "callResponse");
         response.addProperty("response", "accepted");
         response.addProperty("sdpAnswer", callerSdpAnswer);
 
-        synchronized (calleer) {
-          calleer.sendMessage(response);
-        }
+        calleer.sendMessage(response);
 
         pipeline.getCallerWebRtcEp().gatherCandidates();
 
+        if (transition(call, CallState.CONNECTING, CallState.ACTIVE)) {
+          long elapsed = System.currentTimeMillis() - acceptedAt;
+          long accepted = acceptedCalls.incrementAndGet();
+          long total = acceptToMediaMillis.addAndGet(elapsed);
+          long hits = prewarmHit ? prewarmHits.incrementAndGet() : prewarmHits.get();
+          log.info("Call from '{}' to '{}' set up {} ms after accept (pre-warmed: {}); "
+              + "average {} ms, {} of {} calls pre-warmed", from, to, elapsed, prewarmHit,
+              total / accepted, hits, accepted);
+        }
+
       } catch (Throwable t) {
         log.error(t.getMessage(), t);
 
-        if (pipeline != null) {
-          pipeline.release();
+        if (!terminate(call)) {
+          // Already stopped by one of the users
+          return;
         }
-
-        pipelines.remove(calleer.getSessionId());
-        pipelines.remove(callee.getSessionId());
+        end(call);
 
         JsonObject response = new JsonObject();
         response.addProperty("id", "callResponse");
@@ -256,7 +594,9 @@ public class CallHandler extends TextWebSocketHandler {
         callee.sendMessage(response);
       }
 
-    } else {
+    } else if (transition(call, CallState.RINGING, CallState.TERMINATING)) {
+      end(call);
+
       JsonObject response = new JsonObject();
       response.addProperty("id", "callResponse");
       response.addProperty("response", "rejected");
@@ -265,37 +605,37 @@ public class CallHandler extends TextWebSocketHandler {
   }
 
   public void stop(WebSocketSession session) throws IOException {
-    String sessionId = session.getId();
-    if (pipelines.containsKey(sessionId)) {
-      pipelines.get(sessionId).release();
-      CallMediaPipeline pipeline = pipelines.remove(sessionId);
-      pipeline.release();
-
-      // Both users can stop the communication. A 'stopCommunication'
-      // message will be sent to the other peer.
-      UserSession stopperUser = registry.getBySession(session);
-      if (stopperUser != null) {
-        UserSession stoppedUser =
-            (stopperUser.getCallingFrom() != null) ? registry.getByName(stopperUser
-                .getCallingFrom()) : stopperUser.getCallingTo() != null ? registry
-                    .getByName(stopperUser.getCallingTo()) : null;
-
-                    if (stoppedUser != null) {
-                      JsonObject message = new JsonObject();
-                      message.addProperty("id", "stopCommunication");
-                      stoppedUser.sendMessage(message);
-                      stoppedUser.clear();
-                    }
-                    stopperUser.clear();
-      }
-
+    Call call = calls.get(session.getId());
+    if (call == null || !terminate(call)) {
+      return;
     }
+    end(call);
+
+    // Both users can stop the communication. A 'stopCommunication'
+    // message will be sent to the other peer.
+    UserSession stopperUser =
+        call.getCaller().getSessionId().equals(session.getId()) ? call.getCaller() : call
+            .getCallee();
+    JsonObject message = new JsonObject();
+    message.addProperty("id", "stopCommunication");
+    call.getPeer(stopperUser).sendMessage(message);
+  }
+
+  @PostConstruct
+  private void init() {
+    scheduleLeakCheck();
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    prewarmExecutor.shutdownNow();
   }
 
   @Override
   public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
     stop(session);
     registry.removeBySession(session);
+    messageSender.remove(session);
   }
 
 }
@@ -17,13 +17,23 @@
 
 package org.kurento.tutorial.one2onecall;
 
-import org.kurento.client.KurentoClient;
-import org.kurento.client.MediaPipeline;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaElement;
 import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Media Pipeline (WebRTC endpoints, i.e. Kurento Media Elements) and connections for the 1 to 1
  * video communication.
+ * <p>
+ * The endpoints of the call are placed in a pipeline taken from a {@link SharedPipelinePool}, which
+ * may hold other calls too. They are reference counted: they start with one reference, held by
+ * whoever built them, and each user of the call sharing them takes its own. The endpoints are
+ * released, without waiting for the media server, when the last reference is dropped, and only
+ * then. The pipeline is released along with them if no other call is placed in it.
  * 
  * @author Boni Garcia (bgarcia@gsyc.es)
  * @author Micael Gallego (micael.gallego@gmail.com)
@@ -31,26 +41,58 @@ import org.kurento.client.WebRtcEndpoint;
  */
 public class CallMediaPipeline {
 
-  private MediaPipeline pipeline;
+  private static final Logger log = LoggerFactory.getLogger(CallMediaPipeline.class);
+
+  private final SharedPipelinePool pipelines;
+  private SharedPipelinePool.Bucket bucket;
   private WebRtcEndpoint callerWebRtcEp;
   private WebRtcEndpoint calleeWebRtcEp;
+  private String preparedCallerSdpOffer;
+  private String preparedCallerSdpAnswer;
+  private final AtomicInteger references = new AtomicInteger(1);
+  private final long createdAt = System.currentTimeMillis();
 
-  public CallMediaPipeline(KurentoClient kurento) {
+  public CallMediaPipeline(SharedPipelinePool pipelines) {
+    this.pipelines = pipelines;
     try {
-      this.pipeline = kurento.createMediaPipeline();
-      this.callerWebRtcEp = new WebRtcEndpoint.Builder(pipeline).build();
-      this.calleeWebRtcEp = new WebRtcEndpoint.Builder(pipeline).build();
+      this.bucket = pipelines.acquire();
+      this.callerWebRtcEp = new WebRtcEndpoint.Builder(bucket.getPipeline()).build();
+      this.calleeWebRtcEp = new WebRtcEndpoint.Builder(bucket.getPipeline()).build();
 
       this.callerWebRtcEp.connect(this.calleeWebRtcEp);
       this.calleeWebRtcEp.connect(this.callerWebRtcEp);
     } catch (Throwable t) {
-      if (this.pipeline != null) {
-        pipeline.release();
+      if (this.bucket != null) {
+        releaseEndpoints();
       }
+      this.bucket = null;
+      this.callerWebRtcEp = null;
+      this.calleeWebRtcEp = null;
+      references.set(0);
     }
   }
 
+  /**
+   * Processes the offer of the caller in advance, while the callee has not answered yet. The
+   * answer is kept until {@link #generateSdpAnswerForCaller(String)} is called with the same offer.
+   *
+   * @param sdpOffer
+   *          the offer of the caller
+   */
+  public void prepareCaller(String sdpOffer) {
+    String sdpAnswer = callerWebRtcEp.processOffer(sdpOffer);
+    this.preparedCallerSdpOffer = sdpOffer;
+    this.preparedCallerSdpAnswer = sdpAnswer;
+  }
+
+  public boolean isReady() {
+    return callerWebRtcEp != null && calleeWebRtcEp != null;
+  }
+
   public String generateSdpAnswerForCaller(String sdpOffer) {
+    if (preparedCallerSdpAnswer != null && sdpOffer.equals(preparedCallerSdpOffer)) {
+      return preparedCallerSdpAnswer;
+    }
     return callerWebRtcEp.processOffer(sdpOffer);
   }
 
@@ -58,10 +100,79 @@ public class CallMediaPipeline {
     return calleeWebRtcEp.processOffer(sdpOffer);
   }
 
-  public void release() {
-    if (pipeline != null) {
-      pipeline.release();
+  /**
+   * Takes a new reference to the pipeline.
+   *
+   * @return false if the pipeline has already been released, so it cannot be used
+   */
+  public boolean retain() {
+    int count;
+    do {
+      count = references.get();
+      if (count <= 0) {
+        return false;
+      }
+    } while (!references.compareAndSet(count, count + 1));
+    return true;
+  }
+
+  /**
+   * Drops a reference to the endpoints, releasing them if it was the last one. Calling this method
+   * once they have been released has no effect.
+   *
+   * @return true if the endpoints have been released by this call
+   */
+  public boolean release() {
+    int count;
+    do {
+      count = references.get();
+      if (count <= 0) {
+        return false;
+      }
+    } while (!references.compareAndSet(count, count - 1));
+
+    if (count > 1) {
+      return false;
+    }
+    if (bucket != null) {
+      releaseEndpoints();
     }
+    return true;
+  }
+
+  private void releaseEndpoints() {
+    if (pipelines.giveBack(bucket)) {
+      // The endpoints have been released with the pipeline
+      return;
+    }
+    for (final MediaElement endpoint : new MediaElement[] { callerWebRtcEp, calleeWebRtcEp }) {
+      if (endpoint == null) {
+        continue;
+      }
+      endpoint.release(new Continuation<Void>() {
+        @Override
+        public void onSuccess(Void result) throws Exception {
+          log.trace("Released endpoint {}", endpoint.getId());
+        }
+
+        @Override
+        public void onError(Throwable cause) throws Exception {
+          log.warn("Could not release endpoint {}: {}", endpoint.getId(), cause.getMessage());
+        }
+      });
+    }
+  }
+
+  public boolean isReleased() {
+    return references.get() <= 0;
+  }
+
+  public long getCreatedAt() {
+    return createdAt;
+  }
+
+  public String getId() {
+    return bucket != null ? bucket.getPipeline().getId() : null;
   }
 
   public WebRtcEndpoint getCallerWebRtcEp() {
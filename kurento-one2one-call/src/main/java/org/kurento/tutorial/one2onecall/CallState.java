@@ -0,0 +1,53 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.one2onecall;
+
+/**
+ * States of a 1 to 1 call. A call moves forward only, from {@link #IDLE} to {@link #TERMINATING},
+ * and may jump to {@link #TERMINATING} from any state when it is rejected, stopped or not answered
+ * in time.
+ */
+public enum CallState {
+
+  /** The call has been created but the callee has not been notified yet. */
+  IDLE,
+
+  /** The callee has been notified and the call is waiting for an answer. */
+  RINGING,
+
+  /** The callee has accepted and the media of the call is being negotiated. */
+  CONNECTING,
+
+  /** Both users have received their SDP answers. */
+  ACTIVE,
+
+  /** The call is being torn down, and its resources released. */
+  TERMINATING;
+
+  /**
+   * Tells if a call in this state can move to another one.
+   *
+   * @param next
+   *          the state to move to
+   * @return true if the transition is allowed
+   */
+  public boolean canMoveTo(CallState next) {
+    return next == TERMINATING ? this != TERMINATING : next.ordinal() == ordinal() + 1;
+  }
+
+}
@@ -17,7 +17,6 @@
 
 package org.kurento.tutorial.one2onecall;
 
-import org.kurento.client.KurentoClient;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
@@ -36,6 +35,36 @@ import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry
 @EnableWebSocket
 public class One2OneCallApp implements WebSocketConfigurer {
 
+  protected static final int DEFAULT_ICE_BUFFER_SIZE = 64;
+
+  protected static final int ICE_BUFFER_SIZE = Integer.getInteger("ice.bufferSize",
+      DEFAULT_ICE_BUFFER_SIZE);
+
+  protected static final long DEFAULT_ICE_BUFFER_TTL = 30000;
+
+  protected static final long ICE_BUFFER_TTL = Long.getLong("ice.bufferTtl",
+      DEFAULT_ICE_BUFFER_TTL);
+
+  protected static final long DEFAULT_RING_TIMEOUT = 30000;
+
+  protected static final long RING_TIMEOUT = Long.getLong("call.ringTimeout",
+      DEFAULT_RING_TIMEOUT);
+
+  protected static final long DEFAULT_MAX_CALL_DURATION = 4 * 60 * 60 * 1000;
+
+  protected static final long MAX_CALL_DURATION = Long.getLong("call.maxDuration",
+      DEFAULT_MAX_CALL_DURATION);
+
+  protected static final long DEFAULT_LEAK_CHECK_INTERVAL = 60000;
+
+  protected static final long LEAK_CHECK_INTERVAL = Long.getLong("call.leakCheckInterval",
+      DEFAULT_LEAK_CHECK_INTERVAL);
+
+  protected static final int DEFAULT_CALLS_PER_PIPELINE = 1;
+
+  protected static final int CALLS_PER_PIPELINE = Integer.getInteger("call.callsPerPipeline",
+      DEFAULT_CALLS_PER_PIPELINE);
+
   @Bean
   public CallHandler callHandler() {
     return new CallHandler();
@@ -47,8 +76,31 @@ public class One2OneCallApp implements WebSocketConfigurer {
   }
 
   @Bean
-  public KurentoClient kurentoClient() {
-    return KurentoClient.create();
+  public OutboundMessageSender outboundMessageSender() {
+    return new OutboundMessageSender(Integer.getInteger("outbound.queueCapacity", 256),
+        OutboundMessageSender.OverflowPolicy
+            .valueOf(System.getProperty("outbound.overflowPolicy", "DISCONNECT")),
+        Long.getLong("outbound.sendTimeout", 10000),
+        Integer.getInteger("outbound.writerThreads", Runtime.getRuntime().availableProcessors()));
+  }
+
+  @Bean
+  public KurentoClientPool kurentoClientPool() {
+    return new KurentoClientPool(KurentoClientPool.parseUris(System.getProperty("kms.urls")),
+        Double.parseDouble(System.getProperty("kms.cpuWeight", "1.0")),
+        Double.parseDouble(System.getProperty("kms.pipelineWeight", "0.05")),
+        Long.getLong("kms.loadRefreshInterval", 5000));
+  }
+
+  @Bean
+  public SharedPipelinePool sharedPipelinePool() {
+    return new SharedPipelinePool(kurentoClientPool(), CALLS_PER_PIPELINE);
+  }
+
+  @Bean
+  public TimerWheel timerWheel() {
+    return new TimerWheel(Long.getLong("timer.tick", 100), Integer.getInteger("timer.wheelSize",
+        512));
   }
 
   @Override
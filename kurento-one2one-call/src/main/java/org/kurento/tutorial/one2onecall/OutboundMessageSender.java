@@ -0,0 +1,337 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.one2onecall;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.NativeWebSocketSession;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Asynchronous sender of WebSocket messages. Each session has a bounded queue of outgoing messages,
+ * drained by a single writer at a time, so the threads producing the messages (request threads or
+ * media server event threads) never block on socket I/O, and messages of a session are still
+ * written one after another and in order.
+ * <p>
+ * Messages are written with the asynchronous API of the container, so a slow client does not hold
+ * a writer thread either: the next message of a session is only written once the previous one has
+ * been sent. A message not sent within the send timeout closes the session. Sessions not backed by
+ * the standard WebSocket API are written to by the writer threads.
+ * <p>
+ * When the queue of a session is full, the configured {@link OverflowPolicy} is applied.
+ */
+public class OutboundMessageSender {
+
+  private static final Logger log = LoggerFactory.getLogger(OutboundMessageSender.class);
+
+  /**
+   * Maximum number of messages written by a writer before giving its thread to other sessions.
+   */
+  private static final int MAX_BATCH = 32;
+
+  public enum OverflowPolicy {
+    /** Discard the oldest queued message to make room for the new one. */
+    DROP_OLDEST,
+    /**
+     * Replace the queued message with the same coalescing key, if any, or else discard the oldest
+     * queued message.
+     */
+    COALESCE,
+    /** Close the session, as the client is not able to keep up with its messages. */
+    DISCONNECT
+  }
+
+  private final int queueCapacity;
+  private final OverflowPolicy overflowPolicy;
+  private final long sendTimeoutMillis;
+  private final ExecutorService writers;
+  private final ConcurrentMap<String, Outbox> outboxes = new ConcurrentHashMap<>();
+  private final AtomicLong droppedMessages = new AtomicLong();
+
+  /**
+   * @param queueCapacity
+   *          maximum number of queued messages per session
+   * @param overflowPolicy
+   *          what to do when a message is sent to a session with a full queue
+   * @param sendTimeoutMillis
+   *          time after which a message not sent yet closes the session
+   * @param writerThreads
+   *          number of threads starting the writes to the sessions
+   */
+  public OutboundMessageSender(int queueCapacity, OverflowPolicy overflowPolicy,
+      long sendTimeoutMillis, int writerThreads) {
+    this.queueCapacity = queueCapacity;
+    this.overflowPolicy = overflowPolicy;
+    this.sendTimeoutMillis = sendTimeoutMillis;
+    this.writers = Executors.newFixedThreadPool(writerThreads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ws-writer-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Queues a message to be sent to a session. This method never blocks on the session.
+   *
+   * @param session
+   *          the destination session
+   * @param message
+   *          the message payload
+   */
+  public void send(WebSocketSession session, String message) {
+    send(session, null, message);
+  }
+
+  /**
+   * Queues a message to be sent to a session. This method never blocks on the session.
+   *
+   * @param session
+   *          the destination session
+   * @param coalesceKey
+   *          key identifying messages that supersede each other, used by the
+   *          {@link OverflowPolicy#COALESCE} policy. Can be null
+   * @param message
+   *          the message payload
+   */
+  public void send(WebSocketSession session, String coalesceKey, String message) {
+    Outbox outbox = outboxes.get(session.getId());
+    if (outbox == null) {
+      if (!session.isOpen()) {
+        // Late message for a closed session, whose outbox has been removed already
+        return;
+      }
+      Outbox newOutbox = new Outbox(session);
+      outbox = outboxes.putIfAbsent(session.getId(), newOutbox);
+      if (outbox == null) {
+        outbox = newOutbox;
+        if (!session.isOpen()) {
+          // Closed meanwhile, remove(session) may have run before the outbox was added
+          outboxes.remove(session.getId(), outbox);
+          return;
+        }
+      }
+    }
+    outbox.offer(coalesceKey, message);
+  }
+
+  /**
+   * Discards the pending messages of a session. To be called once the session is closed.
+   *
+   * @param session
+   *          the closed session
+   */
+  public void remove(WebSocketSession session) {
+    Outbox outbox = outboxes.remove(session.getId());
+    if (outbox != null) {
+      outbox.clear();
+    }
+  }
+
+  public long getDroppedMessages() {
+    return droppedMessages.get();
+  }
+
+  @PreDestroy
+  public void close() {
+    writers.shutdownNow();
+  }
+
+  private static class QueuedMessage {
+    private final String coalesceKey;
+    private String payload;
+
+    private QueuedMessage(String coalesceKey, String payload) {
+      this.coalesceKey = coalesceKey;
+      this.payload = payload;
+    }
+  }
+
+  private class Outbox implements Runnable {
+
+    private final WebSocketSession session;
+    private final Session nativeSession;
+    private final Deque<QueuedMessage> queue = new ArrayDeque<>();
+    private boolean draining;
+
+    private Outbox(WebSocketSession session) {
+      this.session = session;
+      this.nativeSession = session instanceof NativeWebSocketSession
+          ? ((NativeWebSocketSession) session).getNativeSession(Session.class) : null;
+      if (nativeSession != null) {
+        nativeSession.getAsyncRemote().setSendTimeout(sendTimeoutMillis);
+      }
+    }
+
+    private void offer(String coalesceKey, String payload) {
+      boolean schedule = false;
+      boolean disconnect = false;
+      synchronized (this) {
+        if (queue.size() >= queueCapacity) {
+          switch (overflowPolicy) {
+            case COALESCE:
+              if (coalesce(coalesceKey, payload)) {
+                return;
+              }
+              dropOldest();
+              break;
+            case DROP_OLDEST:
+              dropOldest();
+              break;
+            case DISCONNECT:
+            default:
+              queue.clear();
+              disconnect = true;
+              break;
+          }
+        }
+
+        if (!disconnect) {
+          queue.addLast(new QueuedMessage(coalesceKey, payload));
+          schedule = !draining;
+          draining = true;
+        }
+      }
+
+      if (disconnect) {
+        disconnect();
+      } else if (schedule) {
+        writers.execute(this);
+      }
+    }
+
+    private boolean coalesce(String coalesceKey, String payload) {
+      if (coalesceKey == null) {
+        return false;
+      }
+      Iterator<QueuedMessage> it = queue.descendingIterator();
+      while (it.hasNext()) {
+        QueuedMessage queued = it.next();
+        if (coalesceKey.equals(queued.coalesceKey)) {
+          queued.payload = payload;
+          droppedMessages.incrementAndGet();
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private void dropOldest() {
+      queue.pollFirst();
+      droppedMessages.incrementAndGet();
+    }
+
+    private synchronized void clear() {
+      queue.clear();
+    }
+
+    private void disconnect() {
+      log.warn("Session {}: outgoing queue full, closing session", session.getId());
+      close();
+    }
+
+    private void close() {
+      outboxes.remove(session.getId(), this);
+      clear();
+      writers.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            session.close(CloseStatus.SESSION_NOT_RELIABLE);
+          } catch (IOException e) {
+            log.debug("Session {}: could not be closed", session.getId(), e);
+          }
+        }
+      });
+    }
+
+    @Override
+    public void run() {
+      for (int i = 0; i < MAX_BATCH; i++) {
+        String payload;
+        synchronized (this) {
+          QueuedMessage next = queue.pollFirst();
+          if (next == null) {
+            draining = false;
+            return;
+          }
+          payload = next.payload;
+        }
+
+        if (!session.isOpen()) {
+          continue;
+        }
+        if (nativeSession != null) {
+          sendAsync(payload);
+          return;
+        }
+        try {
+          session.sendMessage(new TextMessage(payload));
+        } catch (IOException | RuntimeException e) {
+          log.debug("Session {}: could not send message: {}", session.getId(), e.getMessage());
+        }
+      }
+      writers.execute(this);
+    }
+
+    // The queue is drained again once the container has sent the message
+    private void sendAsync(String payload) {
+      try {
+        nativeSession.getAsyncRemote().sendText(payload, new SendHandler() {
+          @Override
+          public void onResult(SendResult result) {
+            if (result.isOK()) {
+              writers.execute(Outbox.this);
+              return;
+            }
+            log.warn("Session {}: message not sent, closing session: {}", session.getId(),
+                result.getException() != null ? result.getException().getMessage() : "");
+            close();
+          }
+        });
+      } catch (RuntimeException e) {
+        log.debug("Session {}: could not send message: {}", session.getId(), e.getMessage());
+        writers.execute(this);
+      }
+    }
+  }
+
+}
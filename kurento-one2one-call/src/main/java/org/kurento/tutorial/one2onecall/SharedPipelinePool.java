@@ -0,0 +1,134 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.one2onecall;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pipelines shared by several calls.
+ * <p>
+ * Every pipeline has its own threads and resources in the media server, whatever the number of
+ * elements it holds. To lower that cost, the endpoints of up to {@code callsPerPipeline} calls are
+ * placed in the same pipeline, which is released once the last of them has ended. With one call
+ * per pipeline every call gets a pipeline of its own.
+ */
+public class SharedPipelinePool {
+
+  private static final Logger log = LoggerFactory.getLogger(SharedPipelinePool.class);
+
+  private final KurentoClientPool kurentoClients;
+  private final int callsPerPipeline;
+  private final List<Bucket> buckets = new ArrayList<>();
+
+  /**
+   * A pipeline and the number of calls placed in it.
+   */
+  public static class Bucket {
+    private final MediaPipeline pipeline;
+    private int calls;
+
+    private Bucket(MediaPipeline pipeline) {
+      this.pipeline = pipeline;
+    }
+
+    public MediaPipeline getPipeline() {
+      return pipeline;
+    }
+  }
+
+  /**
+   * @param kurentoClients
+   *          media servers where new pipelines are created
+   * @param callsPerPipeline
+   *          maximum number of calls placed in each pipeline
+   */
+  public SharedPipelinePool(KurentoClientPool kurentoClients, int callsPerPipeline) {
+    this.kurentoClients = kurentoClients;
+    this.callsPerPipeline = Math.max(1, callsPerPipeline);
+  }
+
+  /**
+   * Finds a place for a new call, in a pipeline with room or in a new one.
+   *
+   * @return the bucket of the call, to be given back when the call ends
+   */
+  public Bucket acquire() {
+    synchronized (this) {
+      for (Bucket bucket : buckets) {
+        if (bucket.calls < callsPerPipeline) {
+          bucket.calls++;
+          return bucket;
+        }
+      }
+    }
+
+    // Created without holding the lock, as it waits for the media server
+    KurentoClient client = kurentoClients.select();
+    Bucket bucket = new Bucket(client.createMediaPipeline());
+    synchronized (this) {
+      bucket.calls++;
+      buckets.add(bucket);
+      log.debug("Created pipeline {} for calls, {} pipelines", bucket.pipeline.getId(),
+          buckets.size());
+    }
+    return bucket;
+  }
+
+  /**
+   * Frees the place of a call, releasing its pipeline if no other call is placed in it.
+   *
+   * @param bucket
+   *          the bucket of the call
+   * @return true if the pipeline has been released, along with every element in it
+   */
+  public boolean giveBack(Bucket bucket) {
+    synchronized (this) {
+      bucket.calls--;
+      if (bucket.calls > 0) {
+        return false;
+      }
+      buckets.remove(bucket);
+    }
+
+    final String id = bucket.pipeline.getId();
+    bucket.pipeline.release(new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.trace("Released pipeline {}", id);
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("Could not release pipeline {}: {}", id, cause.getMessage());
+      }
+    });
+    return true;
+  }
+
+  public synchronized int getPipelineCount() {
+    return buckets.size();
+  }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.one2onecall;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timer wheel, used to expire many timeouts with a single thread.
+ * <p>
+ * The wheel has {@code wheelSize} buckets and advances one bucket every {@code tickMillis}. A
+ * timeout is placed in the bucket of the tick where it expires, with the number of full turns of the
+ * wheel still to wait for. Scheduling and cancelling only touch a concurrent queue and a flag, and
+ * the buckets are only accessed by the thread of the wheel, so no lock is taken. Timeouts expire
+ * with a precision of one tick.
+ * <p>
+ * Expired tasks are run in the thread of the wheel, so they must not block.
+ */
+public class TimerWheel {
+
+  private static final Logger log = LoggerFactory.getLogger(TimerWheel.class);
+
+  private static final int PENDING = 0;
+  private static final int CANCELLED = 1;
+  private static final int EXPIRED = 2;
+
+  private final long tickNanos;
+  private final List<List<Timeout>> buckets;
+  private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+  private final long startTime = System.nanoTime();
+  private long tick;
+
+  private final ScheduledExecutorService ticker = Executors
+      .newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "timer-wheel");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /**
+   * A task waiting in the wheel.
+   */
+  public static class Timeout {
+    private final Runnable task;
+    private final long deadline;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    private long rounds;
+
+    private Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Cancels the timeout, if it has not expired yet.
+     *
+     * @return true if the task will not be run
+     */
+    public boolean cancel() {
+      return state.compareAndSet(PENDING, CANCELLED);
+    }
+
+    public boolean isExpired() {
+      return state.get() == EXPIRED;
+    }
+  }
+
+  /**
+   * @param tickMillis
+   *          time between two buckets of the wheel
+   * @param wheelSize
+   *          number of buckets of the wheel
+   */
+  public TimerWheel(long tickMillis, int wheelSize) {
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    this.buckets = new ArrayList<>(wheelSize);
+    for (int i = 0; i < wheelSize; i++) {
+      buckets.add(new ArrayList<Timeout>());
+    }
+
+    ticker.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          advance();
+        } catch (Exception e) {
+          log.error("Error advancing timer wheel", e);
+        }
+      }
+    }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Schedules a task.
+   *
+   * @param task
+   *          the task to run when the timeout expires
+   * @param delayMillis
+   *          time to wait before running the task
+   * @return the timeout, which can be cancelled
+   */
+  public Timeout schedule(Runnable task, long delayMillis) {
+    Timeout timeout = new Timeout(task,
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+    scheduled.add(timeout);
+    return timeout;
+  }
+
+  @PreDestroy
+  public void close() {
+    ticker.shutdownNow();
+  }
+
+  private void advance() {
+    Timeout timeout;
+    while ((timeout = scheduled.poll()) != null) {
+      if (timeout.state.get() != PENDING) {
+        continue;
+      }
+      long expiryTick = Math.max((timeout.deadline - startTime + tickNanos - 1) / tickNanos, tick);
+      timeout.rounds = (expiryTick - tick) / buckets.size();
+      buckets.get((int) (expiryTick % buckets.size())).add(timeout);
+    }
+
+    Iterator<Timeout> it = buckets.get((int) (tick % buckets.size())).iterator();
+    while (it.hasNext()) {
+      timeout = it.next();
+      if (timeout.state.get() != PENDING) {
+        it.remove();
+      } else if (timeout.rounds > 0) {
+        timeout.rounds--;
+      } else {
+        it.remove();
+        if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+          try {
+            timeout.task.run();
+          } catch (Exception e) {
+            log.error("Error running expired task", e);
+          }
+        }
+      }
+    }
+    tick++;
+  }
+
+}
@@ -18,14 +18,11 @@
 package org.kurento.tutorial.one2onecall;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
 import org.kurento.client.IceCandidate;
 import org.kurento.client.WebRtcEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
 import com.google.gson.JsonObject;
@@ -43,16 +40,16 @@ public class UserSession {
 
   private final String name;
   private final WebSocketSession session;
+  private final OutboundMessageSender messageSender;
 
-  private String sdpOffer;
-  private String callingTo;
-  private String callingFrom;
   private WebRtcEndpoint webRtcEndpoint;
-  private final List<IceCandidate> candidateList = new ArrayList<IceCandidate>();
+  private final IceCandidateBuffer candidateBuffer = new IceCandidateBuffer(
+      One2OneCallApp.ICE_BUFFER_SIZE, One2OneCallApp.ICE_BUFFER_TTL);
 
-  public UserSession(WebSocketSession session, String name) {
+  public UserSession(WebSocketSession session, String name, OutboundMessageSender messageSender) {
     this.session = session;
     this.name = name;
+    this.messageSender = messageSender;
   }
 
   public WebSocketSession getSession() {
@@ -63,33 +60,9 @@ public class UserSession {
     return name;
   }
 
-  public String getSdpOffer() {
-    return sdpOffer;
-  }
-
-  public void setSdpOffer(String sdpOffer) {
-    this.sdpOffer = sdpOffer;
-  }
-
-  public String getCallingTo() {
-    return callingTo;
-  }
-
-  public void setCallingTo(String callingTo) {
-    this.callingTo = callingTo;
-  }
-
-  public String getCallingFrom() {
-    return callingFrom;
-  }
-
-  public void setCallingFrom(String callingFrom) {
-    this.callingFrom = callingFrom;
-  }
-
   public void sendMessage(JsonObject message) throws IOException {
     log.debug("Sending message from user '{}': {}", name, message);
-    session.sendMessage(new TextMessage(message.toString()));
+    messageSender.send(session, message.toString());
   }
 
   public String getSessionId() {
@@ -97,24 +70,28 @@ public class UserSession {
   }
 
   public void setWebRtcEndpoint(WebRtcEndpoint webRtcEndpoint) {
-    this.webRtcEndpoint = webRtcEndpoint;
-
-    for (IceCandidate e : candidateList) {
-      this.webRtcEndpoint.addIceCandidate(e);
+    synchronized (candidateBuffer) {
+      this.webRtcEndpoint = webRtcEndpoint;
+      candidateBuffer.flushTo(webRtcEndpoint);
     }
-    this.candidateList.clear();
   }
 
   public void addCandidate(IceCandidate candidate) {
-    if (this.webRtcEndpoint != null) {
-      this.webRtcEndpoint.addIceCandidate(candidate);
-    } else {
-      candidateList.add(candidate);
+    final WebRtcEndpoint endpoint;
+    synchronized (candidateBuffer) {
+      endpoint = this.webRtcEndpoint;
+      if (endpoint == null) {
+        candidateBuffer.add(candidate);
+        return;
+      }
     }
+    endpoint.addIceCandidate(candidate);
   }
 
   public void clear() {
-    this.webRtcEndpoint = null;
-    this.candidateList.clear();
+    synchronized (candidateBuffer) {
+      this.webRtcEndpoint = null;
+      candidateBuffer.drain();
+    }
   }
 }
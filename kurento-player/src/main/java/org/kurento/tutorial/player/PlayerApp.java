@@ -17,7 +17,6 @@
 
 package org.kurento.tutorial.player;
 
-import org.kurento.client.KurentoClient;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
@@ -41,8 +40,28 @@ public class PlayerApp implements WebSocketConfigurer {
   }
 
   @Bean
-  public KurentoClient kurentoClient() {
-    return KurentoClient.create();
+  public OutboundMessageSender outboundMessageSender() {
+    return new OutboundMessageSender(Integer.getInteger("outbound.queueCapacity", 256),
+        OutboundMessageSender.OverflowPolicy
+            .valueOf(System.getProperty("outbound.overflowPolicy", "DISCONNECT")),
+        Long.getLong("outbound.sendTimeout", 10000),
+        Integer.getInteger("outbound.writerThreads", Runtime.getRuntime().availableProcessors()));
+  }
+
+  @Bean
+  public KurentoClientPool kurentoClientPool() {
+    return new KurentoClientPool(KurentoClientPool.parseUris(System.getProperty("kms.urls")),
+        Double.parseDouble(System.getProperty("kms.cpuWeight", "1.0")),
+        Double.parseDouble(System.getProperty("kms.pipelineWeight", "0.05")),
+        Long.getLong("kms.loadRefreshInterval", 5000));
+  }
+
+  @Bean
+  public MediaPipelinePool pipelinePool() {
+    return new MediaPipelinePool(kurentoClientPool(), Integer.getInteger("pipelinePool.warmSize", 2),
+        Integer.getInteger("pipelinePool.maxSize", 8),
+        Long.getLong("pipelinePool.idleTimeout", 60000),
+        Long.getLong("pipelinePool.checkInterval", 30000));
   }
 
   @Override
@@ -17,7 +17,6 @@
 
 package org.kurento.tutorial.player;
 
-import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.kurento.client.EndOfStreamEvent;
@@ -25,7 +24,6 @@ import org.kurento.client.ErrorEvent;
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.IceCandidateFoundEvent;
-import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.MediaState;
 import org.kurento.client.MediaStateChangedEvent;
@@ -57,7 +55,10 @@ import com.google.gson.JsonObject;
 public class PlayerHandler extends TextWebSocketHandler {
 
   @Autowired
-  private KurentoClient kurento;
+  private MediaPipelinePool pipelinePool;
+
+  @Autowired
+  private OutboundMessageSender messageSender;
 
   private final Logger log = LoggerFactory.getLogger(PlayerHandler.class);
   private final Gson gson = new GsonBuilder().create();
@@ -105,7 +106,7 @@ public class PlayerHandler extends TextWebSocketHandler {
   private void start(final WebSocketSession session, JsonObject jsonMessage) {
     // 1. Media pipeline
     final UserSession user = new UserSession();
-    MediaPipeline pipeline = kurento.createMediaPipeline();
+    MediaPipeline pipeline = pipelinePool.borrow();
     user.setMediaPipeline(pipeline);
     WebRtcEndpoint webRtcEndpoint = new WebRtcEndpoint.Builder(pipeline).build();
     user.setWebRtcEndpoint(webRtcEndpoint);
@@ -125,13 +126,7 @@ public class PlayerHandler extends TextWebSocketHandler {
         JsonObject response = new JsonObject();
         response.addProperty("id", "iceCandidate");
         response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-        try {
-          synchronized (session) {
-            session.sendMessage(new TextMessage(response.toString()));
-          }
-        } catch (IOException e) {
-          log.debug(e.getMessage());
-        }
+        sendMessage(session, response.toString());
       }
     });
 
@@ -212,7 +207,7 @@ public class PlayerHandler extends TextWebSocketHandler {
     UserSession user = users.remove(sessionId);
 
     if (user != null) {
-      user.release();
+      user.release(pipelinePool);
     }
   }
 
@@ -274,16 +269,13 @@ public class PlayerHandler extends TextWebSocketHandler {
     }
   }
 
-  private synchronized void sendMessage(WebSocketSession session, String message) {
-    try {
-      session.sendMessage(new TextMessage(message));
-    } catch (IOException e) {
-      log.error("Exception sending message", e);
-    }
+  private void sendMessage(WebSocketSession session, String message) {
+    messageSender.send(session, message);
   }
 
   @Override
   public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
     stop(session.getId());
+    messageSender.remove(session);
   }
 }
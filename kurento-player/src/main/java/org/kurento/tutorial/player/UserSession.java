@@ -59,8 +59,8 @@ public class UserSession {
     this.playerEndpoint = playerEndpoint;
   }
 
-  public void release() {
+  public void release(MediaPipelinePool pipelinePool) {
     this.playerEndpoint.stop();
-    this.mediaPipeline.release();
+    pipelinePool.giveBack(this.mediaPipeline, this.playerEndpoint, this.webRtcEndpoint);
   }
 }
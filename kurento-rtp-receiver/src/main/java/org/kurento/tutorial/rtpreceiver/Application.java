@@ -16,6 +16,10 @@
 
 package org.kurento.tutorial.rtpreceiver;
 
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Paths;
+
 import org.kurento.client.KurentoClient;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
@@ -31,12 +35,68 @@ import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry
 @EnableWebSocket
 public class Application implements WebSocketConfigurer
 {
+  protected static final String DEFAULT_RECORDING_DIR = "file:///mnt/c/Users/uvin.withana/Videos/";
+
+  protected static final String RECORDING_DIR = System.getProperty("recording.dir",
+      DEFAULT_RECORDING_DIR);
+
+  // Zero records each session to a single file
+  protected static final long DEFAULT_SEGMENT_DURATION = 0;
+
+  protected static final long SEGMENT_DURATION = Long.getLong("recording.segmentDuration",
+      DEFAULT_SEGMENT_DURATION);
+
+  protected static final long DEFAULT_SEGMENT_SIZE = 0;
+
+  protected static final long SEGMENT_SIZE = Long.getLong("recording.segmentSize",
+      DEFAULT_SEGMENT_SIZE);
+
+  protected static final long DEFAULT_STORAGE_GLOBAL_QUOTA = 10L * 1024 * 1024 * 1024;
+
+  protected static final long DEFAULT_STORAGE_USER_QUOTA = 1024L * 1024 * 1024;
+
+  // Zero keeps the recordings until they are deleted by hand
+  protected static final long DEFAULT_STORAGE_MAX_AGE = 0;
+
+  protected static final long DEFAULT_STORAGE_MAX_SIZE = 0;
+
+  protected static final long DEFAULT_STORAGE_SWEEP_INTERVAL = 60000;
+
   @Bean
   public Handler handler()
   {
     return new Handler();
   }
 
+  @Bean
+  public EndpointUtils endpointUtils()
+  {
+    return new EndpointUtils();
+  }
+
+  @Bean
+  public OutboundMessageSender outboundMessageSender()
+  {
+    return new OutboundMessageSender(Integer.getInteger("outbound.queueCapacity", 256),
+        OutboundMessageSender.OverflowPolicy
+            .valueOf(System.getProperty("outbound.overflowPolicy", "DISCONNECT")),
+        Long.getLong("outbound.sendTimeout", 10000),
+        Integer.getInteger("outbound.writerThreads", Runtime.getRuntime().availableProcessors()));
+  }
+
+  @Bean
+  public RecordingStorage recordingStorage() throws IOException
+  {
+    // Quotas are per session, as the sessions of this tutorial have no user name
+    return new RecordingStorage(Paths.get(URI.create(RECORDING_DIR)),
+        Handler.RECORDER_FILE_PATTERN,
+        Long.getLong("storage.globalQuota", DEFAULT_STORAGE_GLOBAL_QUOTA),
+        Long.getLong("storage.userQuota", DEFAULT_STORAGE_USER_QUOTA),
+        Long.getLong("storage.maxAge", DEFAULT_STORAGE_MAX_AGE),
+        Long.getLong("storage.maxSize", DEFAULT_STORAGE_MAX_SIZE),
+        Long.getLong("storage.sweepInterval", DEFAULT_STORAGE_SWEEP_INTERVAL));
+  }
+
   @Bean
   public KurentoClient kurentoClient()
   {
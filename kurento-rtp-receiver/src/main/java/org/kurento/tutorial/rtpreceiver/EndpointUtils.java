@@ -3,6 +3,7 @@ package org.kurento.tutorial.rtpreceiver;
 import com.google.gson.JsonObject;
 import org.kurento.client.BaseRtpEndpoint;
 import org.kurento.client.ConnectionStateChangedEvent;
+import org.kurento.client.Continuation;
 import org.kurento.client.CryptoSuite;
 import org.kurento.client.ErrorEvent;
 import org.kurento.client.EventListener;
@@ -29,16 +30,21 @@ import org.kurento.client.WebRtcEndpoint;
 import org.kurento.jsonrpc.JsonUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.web.socket.TextMessage;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.socket.WebSocketSession;
 
-import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class EndpointUtils {
 
   private final Logger log = LoggerFactory.getLogger(EndpointUtils.class);
 
+  @Autowired
+  private OutboundMessageSender messageSender;
+
+  @Autowired
+  private RecordingStorage storage;
+
   public void addWebRtpListeners(WebRtcEndpoint webRtcEp) {
     webRtcEp.addMediaStateChangedListener(new EventListener<MediaStateChangedEvent>() {
       @Override
@@ -278,18 +284,18 @@ public class EndpointUtils {
   }
 
 
-  public synchronized void sendMessage(final WebSocketSession session,
-                                       String message) {
+  public void sendMessage(final WebSocketSession session,
+                          String message) {
     if (!session.isOpen()) {
       log.error("[Handler::sendMessage] WebSocket session is closed");
       return;
     }
 
-    try {
-      session.sendMessage(new TextMessage(message));
-    } catch (IOException ex) {
-      log.error("[Handler::sendMessage] Exception: {}", ex.getMessage());
-    }
+    messageSender.send(session, message);
+  }
+
+  public void removeSession(final WebSocketSession session) {
+    messageSender.remove(session);
   }
 
 
@@ -352,14 +358,33 @@ public class EndpointUtils {
     String sessionId = session.getId();
     UserSession user = users.remove(sessionId);
     if (user != null) {
-      MediaPipeline mediaPipeline = user.getMediaPipeline();
-      if (mediaPipeline != null) {
-        log.info("[Handler::stop] Release the Media Pipeline");
-        mediaPipeline.release();
+      final MediaPipeline mediaPipeline = user.getMediaPipeline();
+      if (user.getRecorder() != null) {
+        // The pipeline is released once the last segment has been written
+        user.getRecorder().stop(new Continuation<Void>() {
+          @Override
+          public void onSuccess(Void result) throws Exception {
+            release(mediaPipeline);
+          }
+
+          @Override
+          public void onError(Throwable cause) throws Exception {
+            release(mediaPipeline);
+          }
+        });
+      } else {
+        release(mediaPipeline);
       }
     }
   }
 
+  private void release(MediaPipeline mediaPipeline) {
+    if (mediaPipeline != null) {
+      log.info("[Handler::stop] Release the Media Pipeline");
+      mediaPipeline.release();
+    }
+  }
+
   public void handleStop(final WebSocketSession session,
                          JsonObject jsonMessage, ConcurrentHashMap<String, UserSession> users) {
     stop(session, users);
@@ -369,8 +394,12 @@ public class EndpointUtils {
   public void handleStartRec(final WebSocketSession session,
                              JsonObject jsonMessage, ConcurrentHashMap<String, UserSession> users) {
     String sessionId = session.getId();
+    if (!storage.hasRoom(sessionId)) {
+      sendError(session, "Recording storage quota reached", users);
+      return;
+    }
     UserSession user = users.get(sessionId);
-    user.getRecorder().record();
+    user.getRecorder().start();
   }
 
   public void handleStopRec(final WebSocketSession session,
@@ -24,7 +24,6 @@ import org.kurento.client.EventListener;
 import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.MediaProfileSpecType;
-import org.kurento.client.MediaType;
 import org.kurento.client.OnKeySoftLimitEvent;
 import org.kurento.client.RecorderEndpoint;
 import org.kurento.client.RtpEndpoint;
@@ -37,9 +36,15 @@ import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
+import javax.annotation.PreDestroy;
+
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -57,20 +62,44 @@ public class Handler extends TextWebSocketHandler {
 
   private final ConcurrentHashMap<String, UserSession> users = new ConcurrentHashMap<>();
 
-  private static final String RECORDER_BASE_FILE_PATH = "file:///mnt/c/Users/uvin.withana/Videos/";
-  private static final String RECORDER_FILE_EXT = "-video.mp4";
+  // Checks the segment limits of the recorders and switches their segments
+  private final ScheduledExecutorService segmentScheduler = Executors.newScheduledThreadPool(1,
+      new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "recording-segments-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
 
-  private EndpointUtils endpointUtils = new EndpointUtils();
+  static final String RECORDER_FILE_EXT = "-video.mp4";
+  // <random name>[-<segment>]-video.mp4
+  static final Pattern RECORDER_FILE_PATTERN =
+      Pattern.compile("[A-Za-z0-9]{10}(?:-\\d{4})?-video\\.mp4");
 
+  @Autowired
+  private EndpointUtils endpointUtils;
 
   @Autowired
   private KurentoClient kurento;
 
+  @Autowired
+  private RecordingStorage storage;
+
+  @PreDestroy
+  private void shutdown() {
+    segmentScheduler.shutdownNow();
+  }
+
   @Override
   public void afterConnectionClosed(final WebSocketSession session,
                                     CloseStatus status) throws Exception {
     log.debug("[Handler::afterConnectionClosed] status: {}, sessionId: {}", status, session.getId());
     endpointUtils.stop(session, users);
+    endpointUtils.removeSession(session);
   }
 
   @Override
@@ -125,7 +154,7 @@ public class Handler extends TextWebSocketHandler {
 
   private String getRandomFileName() {
     String fileName = RandomStringUtils.randomAlphanumeric(10);
-    return RECORDER_BASE_FILE_PATH + fileName + RECORDER_FILE_EXT;
+    return Application.RECORDING_DIR + fileName;
   }
 
 
@@ -384,19 +413,34 @@ Some default values are defined by different RFCs:
     user.setMediaPipeline(pipeline);
 
 
-    RecorderEndpoint recorder = new RecorderEndpoint.Builder(pipeline, getRandomFileName())
-        .withMediaProfile(MediaProfileSpecType.MP4).build();
     final WebRtcEndpoint webRtcEp = new WebRtcEndpoint.Builder(pipeline).build();
     user.setWebRtcEp(webRtcEp);
 
-    endpointUtils.addRecorderListeners(recorder);
-
-
     Boolean useSrtp = jsonMessage.get("useSrtp").getAsBoolean();
 
 //    final PlayerEndpoint playerEp = endpointUtils.makePlayerEndpoint(pipeline, useSrtp);
     final RtpEndpoint rtpEp = endpointUtils.makeRtpEndpoint(pipeline, useSrtp);
     user.setRtpEp(rtpEp);
+
+    // Every segment gets a recorder of its own, configured as it is created
+    SegmentedRecorder recorder = new SegmentedRecorder(pipeline, rtpEp, getRandomFileName(),
+        RECORDER_FILE_EXT, MediaProfileSpecType.MP4, Application.SEGMENT_DURATION,
+        Application.SEGMENT_SIZE, segmentScheduler, new SegmentedRecorder.Listener() {
+          @Override
+          public void onSegmentStarted(SegmentedRecorder.Segment segment,
+              RecorderEndpoint endpoint) {
+            storage.add(sessionId, segment.getUrl());
+            endpointUtils.addRecorderListeners(endpoint);
+            endpoint.setMaxOutputBitrate(0);
+            endpoint.setMinOutputBitrate(0);
+          }
+
+          @Override
+          public void onSegmentFinished(SegmentedRecorder.Segment segment) {
+            storage.finish(segment.getUrl());
+            log.info("[Handler::handleStart] Recording segment finished: {}", segment.getUrl());
+          }
+        });
     user.setRecorder(recorder);
 
     endpointUtils.addRtpListeners(rtpEp);
@@ -404,7 +448,6 @@ Some default values are defined by different RFCs:
 
     webRtcEp.setMaxOutputBitrate(0);
     webRtcEp.setMaxAudioRecvBandwidth(0);
-    recorder.setMaxOutputBitrate(0);
     rtpEp.setMaxVideoSendBandwidth(0);
     rtpEp.setMaxOutputBitrate(0);
 
@@ -417,11 +460,8 @@ Some default values are defined by different RFCs:
     rtpEp.setMinVideoRecvBandwidth(0);
     rtpEp.setMinVideoSendBandwidth(0);
 
-    recorder.setMaxOutputBitrate(0);
-    recorder.setMinOutputBitrate(0);
     // ---- Endpoint configuration
-    rtpEp.connect(recorder, MediaType.VIDEO);
-    rtpEp.connect(recorder, MediaType.AUDIO);
+    // The recorder connects itself to rtpEp when recording starts
     //todo: uncomment this
     rtpEp.connect(webRtcEp);
 
@@ -0,0 +1,497 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.rtpreceiver;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.EventListener;
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaProfileSpecType;
+import org.kurento.client.RecorderEndpoint;
+import org.kurento.client.RecordingEvent;
+import org.kurento.client.StoppedEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Records the media of an element in consecutive segments, so long recordings can be processed
+ * while they are still going on.
+ * <p>
+ * A new segment is started every {@code maxDuration} ms, or when the file of the current one
+ * reaches {@code maxBytes}. Segments overlap: the recorder of the next segment is connected and
+ * started before the current one is disconnected, and the switch is made once the new recorder
+ * is recording, so no media is lost between them. The manifest lists every segment with its start
+ * and end times, and is also written next to the recordings when they are local files. Without
+ * limits, a single file is recorded, as with a plain {@link RecorderEndpoint}.
+ * <p>
+ * The size limit can only be checked when the media server writes to a filesystem this
+ * application can read.
+ */
+public class SegmentedRecorder {
+
+  private static final Logger log = LoggerFactory.getLogger(SegmentedRecorder.class);
+
+  private static final long CHECK_INTERVAL = 5000;
+  private static final long SWITCH_TIMEOUT = 5000;
+  private static final long STOP_TIMEOUT = 5000;
+
+  /**
+   * Receives the life cycle of the segments.
+   */
+  public interface Listener {
+
+    /**
+     * Called when a segment is created, before it starts recording, so its recorder can be
+     * configured.
+     */
+    void onSegmentStarted(Segment segment, RecorderEndpoint recorder);
+
+    /**
+     * Called when the file of a segment is complete, so it can be processed.
+     */
+    void onSegmentFinished(Segment segment);
+  }
+
+  /**
+   * A file of the recording.
+   */
+  public static class Segment {
+    private final int index;
+    private final String url;
+    private final long startTime;
+    private volatile long endTime = -1;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private RecorderEndpoint recorder;
+
+    private Segment(int index, String url, long startTime) {
+      this.index = index;
+      this.url = url;
+      this.startTime = startTime;
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    public long getStartTime() {
+      return startTime;
+    }
+
+    /**
+     * @return the time the segment stopped receiving media, or -1 if it is still recording
+     */
+    public long getEndTime() {
+      return endTime;
+    }
+
+    public boolean isFinished() {
+      return finished.get();
+    }
+
+    public JsonObject toJson() {
+      JsonObject json = new JsonObject();
+      json.addProperty("index", index);
+      json.addProperty("url", url);
+      json.addProperty("startTime", startTime);
+      json.addProperty("endTime", endTime);
+      json.addProperty("finished", finished.get());
+      return json;
+    }
+  }
+
+  private final MediaPipeline pipeline;
+  private final MediaElement source;
+  private final String baseUrl;
+  private final String extension;
+  private final MediaProfileSpecType profile;
+  private final long maxDuration;
+  private final long maxBytes;
+  private final ScheduledExecutorService scheduler;
+  private final Listener listener;
+  private final Path manifestFile;
+
+  private final List<Segment> segments = new ArrayList<>();
+  private Segment current;
+  private boolean rotating;
+  private boolean stopped;
+  private ScheduledFuture<?> check;
+
+  /**
+   * @param pipeline
+   *          the pipeline where the recorders are created
+   * @param source
+   *          the element whose media is recorded
+   * @param baseUrl
+   *          URL of the recording, without extension; segments add their index to it
+   * @param extension
+   *          extension of the files, with its dot
+   * @param profile
+   *          media profile of the files
+   * @param maxDuration
+   *          duration of each segment in ms, or zero for no limit
+   * @param maxBytes
+   *          size of each segment in bytes, or zero for no limit
+   * @param scheduler
+   *          executor of the checks and switches
+   * @param listener
+   *          listener of the segments
+   */
+  public SegmentedRecorder(MediaPipeline pipeline, MediaElement source, String baseUrl,
+      String extension, MediaProfileSpecType profile, long maxDuration, long maxBytes,
+      ScheduledExecutorService scheduler, Listener listener) {
+    this.pipeline = pipeline;
+    this.source = source;
+    this.baseUrl = baseUrl;
+    this.extension = extension;
+    this.profile = profile;
+    this.maxDuration = maxDuration;
+    this.maxBytes = maxBytes;
+    this.scheduler = scheduler;
+    this.listener = listener;
+    this.manifestFile = isSegmented() ? localPath(baseUrl + ".manifest.json") : null;
+  }
+
+  /**
+   * Starts recording the first segment and checking the limits. A recorder can only be started
+   * once.
+   */
+  public void start() {
+    synchronized (this) {
+      if (stopped || current != null) {
+        return;
+      }
+    }
+    Segment first = newSegment();
+    synchronized (this) {
+      if (stopped) {
+        discard(first);
+        return;
+      }
+      segments.add(first);
+      current = first;
+    }
+    source.connect(first.recorder);
+    first.recorder.record();
+
+    if (isSegmented()) {
+      long interval = maxDuration > 0 ? Math.min(CHECK_INTERVAL, maxDuration) : CHECK_INTERVAL;
+      synchronized (this) {
+        check = scheduler.scheduleWithFixedDelay(new Runnable() {
+          @Override
+          public void run() {
+            checkLimits();
+          }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+      }
+    }
+    writeManifest();
+  }
+
+  /**
+   * Stops recording.
+   */
+  public void stop() {
+    stop(null);
+  }
+
+  /**
+   * Stops recording. Each of the last segments is reported as finished when its recorder sends
+   * its {@link StoppedEvent}, or after a timeout if it never comes, so the pipeline must not be
+   * released before the continuation is called.
+   *
+   * @param continuation
+   *          called when the last segments have been reported as finished, or null
+   */
+  public void stop(final Continuation<Void> continuation) {
+    List<Segment> recording = new ArrayList<>();
+    synchronized (this) {
+      if (!stopped) {
+        stopped = true;
+        if (check != null) {
+          check.cancel(false);
+        }
+        for (Segment segment : segments) {
+          if (segment.endTime < 0) {
+            recording.add(segment);
+          }
+        }
+      }
+    }
+    writeManifest();
+
+    final AtomicInteger pending = new AtomicInteger(recording.size());
+    if (recording.isEmpty()) {
+      notifyStopped(continuation);
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    for (final Segment segment : recording) {
+      segment.endTime = now;
+
+      final AtomicBoolean done = new AtomicBoolean();
+      final Runnable onStopped = new Runnable() {
+        @Override
+        public void run() {
+          if (done.compareAndSet(false, true)) {
+            finished(segment);
+            writeManifest();
+            if (pending.decrementAndGet() == 0) {
+              notifyStopped(continuation);
+            }
+          }
+        }
+      };
+      segment.recorder.addStoppedListener(new EventListener<StoppedEvent>() {
+        @Override
+        public void onEvent(StoppedEvent event) {
+          scheduler.execute(onStopped);
+        }
+      });
+      segment.recorder.stop(new Continuation<Void>() {
+        @Override
+        public void onSuccess(Void result) throws Exception {
+        }
+
+        @Override
+        public void onError(Throwable cause) throws Exception {
+          log.debug("Could not stop recorder of {}: {}", baseUrl, cause.getMessage());
+          scheduler.execute(onStopped);
+        }
+      });
+      scheduler.schedule(onStopped, STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public synchronized List<Segment> getSegments() {
+    return new ArrayList<>(segments);
+  }
+
+  /**
+   * @return the list of segments, and whether the recording is complete
+   */
+  public synchronized JsonObject getManifest() {
+    JsonArray list = new JsonArray();
+    for (Segment segment : segments) {
+      list.add(segment.toJson());
+    }
+    JsonObject manifest = new JsonObject();
+    manifest.addProperty("url", baseUrl + extension);
+    manifest.addProperty("complete", stopped);
+    manifest.add("segments", list);
+    return manifest;
+  }
+
+  private boolean isSegmented() {
+    return maxDuration > 0 || maxBytes > 0;
+  }
+
+  private Segment newSegment() {
+    int index;
+    synchronized (this) {
+      index = segments.size();
+    }
+    String url = isSegmented() ? String.format("%s-%04d%s", baseUrl, index, extension)
+        : baseUrl + extension;
+    Segment segment = new Segment(index, url, System.currentTimeMillis());
+    segment.recorder = new RecorderEndpoint.Builder(pipeline, url).withMediaProfile(profile)
+        .build();
+    listener.onSegmentStarted(segment, segment.recorder);
+    return segment;
+  }
+
+  private void checkLimits() {
+    Segment segment;
+    synchronized (this) {
+      if (stopped || rotating) {
+        return;
+      }
+      segment = current;
+    }
+
+    boolean tooLong = maxDuration > 0
+        && System.currentTimeMillis() - segment.startTime >= maxDuration;
+    if (tooLong || maxBytes > 0 && sizeOf(segment) >= maxBytes) {
+      try {
+        rotate(segment);
+      } catch (RuntimeException e) {
+        log.warn("Could not start a new segment of {}: {}", baseUrl, e.getMessage());
+        synchronized (this) {
+          rotating = false;
+        }
+      }
+    }
+  }
+
+  private void rotate(final Segment previous) {
+    synchronized (this) {
+      if (stopped || rotating) {
+        return;
+      }
+      rotating = true;
+    }
+
+    final Segment next = newSegment();
+    synchronized (this) {
+      if (stopped) {
+        discard(next);
+        return;
+      }
+      segments.add(next);
+    }
+
+    // Both recorders get the media until the new one is recording
+    final AtomicBoolean switched = new AtomicBoolean();
+    final Runnable doSwitch = new Runnable() {
+      @Override
+      public void run() {
+        if (switched.compareAndSet(false, true)) {
+          switchTo(previous, next);
+        }
+      }
+    };
+    next.recorder.addRecordingListener(new EventListener<RecordingEvent>() {
+      @Override
+      public void onEvent(RecordingEvent event) {
+        scheduler.execute(doSwitch);
+      }
+    });
+    source.connect(next.recorder);
+    next.recorder.record();
+    scheduler.schedule(doSwitch, SWITCH_TIMEOUT, TimeUnit.MILLISECONDS);
+  }
+
+  private void switchTo(final Segment previous, Segment next) {
+    synchronized (this) {
+      if (stopped) {
+        // Both segments have been stopped already
+        return;
+      }
+      current = next;
+      rotating = false;
+      previous.endTime = System.currentTimeMillis();
+    }
+    log.debug("Recording {} switched to segment {}", baseUrl, next.index);
+    writeManifest();
+
+    final AtomicBoolean done = new AtomicBoolean();
+    final Runnable onStopped = new Runnable() {
+      @Override
+      public void run() {
+        if (done.compareAndSet(false, true)) {
+          previous.recorder.release(new Continuation<Void>() {
+            @Override
+            public void onSuccess(Void result) throws Exception {
+            }
+
+            @Override
+            public void onError(Throwable cause) throws Exception {
+              log.debug("Could not release recorder of segment {}", previous.url);
+            }
+          });
+          finished(previous);
+          writeManifest();
+        }
+      }
+    };
+    previous.recorder.addStoppedListener(new EventListener<StoppedEvent>() {
+      @Override
+      public void onEvent(StoppedEvent event) {
+        scheduler.execute(onStopped);
+      }
+    });
+    source.disconnect(previous.recorder);
+    previous.recorder.stop();
+    scheduler.schedule(onStopped, STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+  }
+
+  private void notifyStopped(Continuation<Void> continuation) {
+    if (continuation == null) {
+      return;
+    }
+    try {
+      continuation.onSuccess(null);
+    } catch (Exception e) {
+      log.warn("Error after stopping recording {}: {}", baseUrl, e.getMessage());
+    }
+  }
+
+  // A segment created while the recorder was being stopped: it never records, but the listener has
+  // been told it started, so it is told it finished as well
+  private void discard(Segment segment) {
+    segment.endTime = segment.startTime;
+    segment.recorder.release();
+    finished(segment);
+  }
+
+  private void finished(Segment segment) {
+    if (segment.finished.compareAndSet(false, true)) {
+      listener.onSegmentFinished(segment);
+    }
+  }
+
+  private long sizeOf(Segment segment) {
+    Path file = localPath(segment.url);
+    try {
+      return file != null && Files.exists(file) ? Files.size(file) : 0;
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private synchronized void writeManifest() {
+    if (manifestFile == null) {
+      return;
+    }
+    String manifest = getManifest().toString();
+    try {
+      Path temp = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+      Files.write(temp, manifest.getBytes(StandardCharsets.UTF_8));
+      Files.move(temp, manifestFile, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.warn("Could not write manifest {}: {}", manifestFile, e.getMessage());
+    }
+  }
+
+  private static Path localPath(String url) {
+    return url.startsWith("file:") ? Paths.get(URI.create(url)) : null;
+  }
+
+}
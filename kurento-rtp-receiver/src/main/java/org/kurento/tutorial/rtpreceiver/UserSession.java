@@ -19,7 +19,6 @@ package org.kurento.tutorial.rtpreceiver;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.kurento.client.MediaPipeline;
-import org.kurento.client.RecorderEndpoint;
 import org.kurento.client.RtpEndpoint;
 import org.kurento.client.WebRtcEndpoint;
 
@@ -28,6 +27,6 @@ import org.kurento.client.WebRtcEndpoint;
 public class UserSession {
   private MediaPipeline mediaPipeline;
   private RtpEndpoint rtpEp;
-  private RecorderEndpoint recorder;
+  private SegmentedRecorder recorder;
   private WebRtcEndpoint webRtcEp;
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.rtpreceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Sends messages to 1,000 sessions at once through the {@link OutboundMessageSender} used by the
+ * handler, with as many producer and writer threads as 1, 2, 4... up to the number of cores, and
+ * logs the throughput of each run. Each write takes some time, as a socket would, so the throughput
+ * is bound by the writes running in parallel and not by a lock shared by all the sessions.
+ */
+public class OutboundMessageSenderLoadTest {
+
+  private static final Logger log = LoggerFactory.getLogger(OutboundMessageSenderLoadTest.class);
+
+  private static final int SESSIONS = 1000;
+  private static final int MESSAGES_PER_SESSION = 20;
+  private static final long WRITE_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+  private static class FakeSession {
+    private final WebSocketSession session;
+    // Index of the next message expected, only touched by the writer of the session
+    private int next;
+    private volatile boolean outOfOrder;
+
+    private FakeSession(final String id, final AtomicLong delivered) throws Exception {
+      session = mock(WebSocketSession.class, withSettings().stubOnly());
+      when(session.getId()).thenReturn(id);
+      when(session.isOpen()).thenReturn(true);
+      doAnswer(new Answer<Void>() {
+        @Override
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+          TextMessage message = invocation.getArgument(0);
+          if (Integer.parseInt(message.getPayload()) != next) {
+            outOfOrder = true;
+          }
+          next++;
+          LockSupport.parkNanos(WRITE_NANOS);
+          delivered.incrementAndGet();
+          return null;
+        }
+      }).when(session).sendMessage(any(TextMessage.class));
+    }
+  }
+
+  @Test
+  public void throughputScalesWithThreads() throws Exception {
+    int cores = Runtime.getRuntime().availableProcessors();
+    List<Integer> threadCounts = new ArrayList<>();
+    for (int threads = 1; threads < cores; threads *= 2) {
+      threadCounts.add(threads);
+    }
+    threadCounts.add(cores);
+
+    double single = 0;
+    double best = 0;
+    for (int threads : threadCounts) {
+      double throughput = run(threads);
+      log.info("{} threads: {} messages/s to {} sessions", threads, Math.round(throughput),
+          SESSIONS);
+      if (threads == 1) {
+        single = throughput;
+      }
+      best = Math.max(best, throughput);
+    }
+
+    if (cores >= 4) {
+      assertTrue("Throughput does not scale: " + single + " vs " + best, best > single * 2);
+    }
+  }
+
+  private double run(int threads) throws Exception {
+    final AtomicLong delivered = new AtomicLong();
+    final List<FakeSession> sessions = new ArrayList<>();
+    for (int i = 0; i < SESSIONS; i++) {
+      sessions.add(new FakeSession("session" + i, delivered));
+    }
+
+    final OutboundMessageSender sender = new OutboundMessageSender(MESSAGES_PER_SESSION,
+        OutboundMessageSender.OverflowPolicy.DISCONNECT, 10000, threads);
+    ExecutorService producers = Executors.newFixedThreadPool(threads);
+    try {
+      final CountDownLatch start = new CountDownLatch(1);
+      for (int i = 0; i < threads; i++) {
+        final int producer = i;
+        final int producerCount = threads;
+        producers.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              start.await();
+            } catch (InterruptedException e) {
+              return;
+            }
+            // Each session is fed by a single producer, so its messages are queued in order
+            for (int message = 0; message < MESSAGES_PER_SESSION; message++) {
+              for (int s = producer; s < SESSIONS; s += producerCount) {
+                sender.send(sessions.get(s).session, Integer.toString(message));
+              }
+            }
+          }
+        });
+      }
+
+      long total = (long) SESSIONS * MESSAGES_PER_SESSION;
+      long begin = System.nanoTime();
+      start.countDown();
+      long deadline = begin + TimeUnit.SECONDS.toNanos(60);
+      while (delivered.get() < total && System.nanoTime() < deadline) {
+        Thread.sleep(1);
+      }
+      long elapsed = System.nanoTime() - begin;
+
+      assertEquals(total, delivered.get());
+      assertEquals(0, sender.getDroppedMessages());
+      for (FakeSession session : sessions) {
+        assertTrue("Messages out of order", !session.outOfOrder);
+      }
+      return total * 1e9 / elapsed;
+    } finally {
+      producers.shutdownNow();
+      sender.close();
+    }
+  }
+
+}